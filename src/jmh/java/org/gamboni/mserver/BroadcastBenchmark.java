@@ -0,0 +1,86 @@
+package org.gamboni.mserver;
+
+import org.gamboni.mserver.data.PlayState;
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.tech.ClientOutboxes;
+import org.gamboni.mserver.tech.Mapping;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+/** Sending the changes of an update session to all clients browsing the directory, as
+ * {@link MServerController#broadcastState} does. Only the caller's side is measured: clients are sent their events
+ * in the background. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final File ROOT = new File("/srv/music");
+    /** Number of files changed by each session (an album being queued, or unqueued). */
+    private static final int ALBUM = 20;
+
+    @Param({"10", "100", "1000"})
+    int clients;
+
+    private Path logFile;
+    private MServerHistoryStore store;
+    private ClientOutboxes outboxes;
+    private List<File> album;
+    private PlayState state = PlayState.STOPPED;
+
+    @Setup
+    public void setUp() throws IOException {
+        var mapping = new Mapping(ROOT);
+        logFile = Files.createTempFile("history", ".log");
+        store = new MServerHistoryStore(mapping, new DirectoryListingCache(), new HistoryLog(logFile));
+        outboxes = new ClientOutboxes(mapping, store::resync);
+        var directory = new File(ROOT, "Album");
+        album = IntStream.range(0, ALBUM)
+                .mapToObj(i -> new File(directory, "Track " + i + ".ogg"))
+                .toList();
+        for (int i = 0; i < clients; i++) {
+            store.addListener(nullClient(), directory, store.getSnapshot(directory).stamp());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+
+    /** A client discarding everything it is sent. The web socket library implements BroadcastTarget: a proxy stands
+     * in for it, so that this does not depend on its other methods. */
+    private static BroadcastTarget nullClient() {
+        return (BroadcastTarget) Proxy.newProxyInstance(BroadcastTarget.class.getClassLoader(),
+                new Class<?>[]{BroadcastTarget.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "client@" + Integer.toHexString(System.identityHashCode(proxy));
+                    default -> null;
+                });
+    }
+
+    @Benchmark
+    public void broadcast() {
+        state = (state == PlayState.QUEUED) ? PlayState.STOPPED : PlayState.QUEUED;
+        var session = new AtomicReference<MServerHistoryStore.UpdateSession>();
+        var notifications = store.update(s -> {
+            session.set(s);
+            s.setFileState(album, state);
+        });
+        outboxes.broadcast(notifications, store.getClients(), session.get()::keyOf);
+    }
+}
@@ -0,0 +1,65 @@
+package org.gamboni.mserver;
+
+import org.gamboni.mserver.data.PlayState;
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.tech.Mapping;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/** Taking the snapshots pages are rendered from. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryStoreBenchmark {
+    private static final File ROOT = new File("/srv/music");
+    /** Number of search results, each in a different directory. */
+    private static final int SEARCH_RESULTS = 200;
+
+    /** Number of files in the directory, a tenth of which are queued. */
+    @Param({"100", "10000"})
+    int files;
+
+    private Path logFile;
+    private MServerHistoryStore store;
+    private File directory;
+    private List<File> searchResults;
+
+    @Setup
+    public void setUp() throws IOException {
+        logFile = Files.createTempFile("history", ".log");
+        store = new MServerHistoryStore(new Mapping(ROOT), new DirectoryListingCache(), new HistoryLog(logFile));
+        directory = new File(ROOT, "Box Set");
+        var queued = IntStream.range(0, files / 10)
+                .mapToObj(i -> new File(directory, "Track " + i + ".ogg"))
+                .toList();
+        store.update(session -> session.setFileState(queued, PlayState.QUEUED));
+        searchResults = IntStream.range(0, SEARCH_RESULTS)
+                .mapToObj(i -> new File(new File(ROOT, "Artist " + i), "Track.ogg"))
+                .toList();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+
+    @Benchmark
+    public DirectorySnapshot getSnapshot() {
+        return store.getSnapshot(directory);
+    }
+
+    @Benchmark
+    public DirectorySnapshot getSnapshotOfSearchResults() {
+        return store.getSnapshot(searchResults);
+    }
+}
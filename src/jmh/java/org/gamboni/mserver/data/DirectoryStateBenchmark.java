@@ -0,0 +1,54 @@
+package org.gamboni.mserver.data;
+
+import org.gamboni.mserver.tech.Mapping;
+import org.gamboni.tech.history.event.NewStateEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** Catching up with the changes made to a directory while a client was away. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryStateBenchmark {
+    private static final File ROOT = new File("/srv/music");
+    private static final PlayState[] STATES = {PlayState.QUEUED, PlayState.PLAYING, PlayState.QUEUED, PlayState.STOPPED};
+
+    /** Number of files in the directory. */
+    @Param({"100", "10000"})
+    int files;
+
+    /** Number of changes the client missed. */
+    @Param({"10", "1000"})
+    int behind;
+
+    private DirectoryState state;
+    private long stamp;
+
+    @Setup
+    public void setUp() {
+        var directory = new File(ROOT, "Box Set");
+        state = new DirectoryState(new Mapping(ROOT), directory, 0);
+        int changes = 10 * files;
+        for (int i = 1; i <= changes; i++) {
+            state.setFileState(new File(directory, "Track " + (i % files) + ".ogg"), i, STATES[i % STATES.length]);
+        }
+        stamp = changes - behind;
+    }
+
+    @Benchmark
+    public Optional<List<NewStateEvent<PlayState>>> getUpdatesSince() {
+        return state.getUpdatesSince(stamp);
+    }
+
+    @Benchmark
+    public DirectoryState.Version getSnapshot() {
+        return state.getSnapshot();
+    }
+}
@@ -0,0 +1,31 @@
+package org.gamboni.mserver.tech;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/** Converting files to and from the paths sent to clients, which is done for every file of every event. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+    private static final File ROOT = new File("/srv/music");
+
+    private final Mapping mapping = new Mapping(ROOT);
+    private final File file = new File(ROOT, "Composers/Vivaldi/The Four Seasons/01. Spring - Allegro.ogg");
+    private final String path = mapping.fileToPath(file);
+
+    @Benchmark
+    public String fileToPath() {
+        return mapping.fileToPath(file);
+    }
+
+    @Benchmark
+    public File pathToFile() {
+        return mapping.pathToFile(path);
+    }
+}
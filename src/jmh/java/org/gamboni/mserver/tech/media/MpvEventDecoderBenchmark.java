@@ -0,0 +1,102 @@
+package org.gamboni.mserver.tech.media;
+
+import org.gamboni.mserver.tech.Mapping;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Decoding what mpv sends on its socket: mostly position changes, many times per second while playing.
+ *
+ * <p>{@link #decodeWithJackson} measures how messages were decoded before {@link MpvEventDecoder}, for
+ * comparison.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MpvEventDecoderBenchmark {
+    /** What a read from the socket typically returns while playing. */
+    private static final String MESSAGES = """
+            {"event":"property-change","id":2,"name":"playback-time","data":39.040266}
+            {"event":"property-change","id":2,"name":"playback-time","data":39.290521}
+            {"event":"property-change","id":2,"name":"playback-time","data":39.540803}
+            {"data":"374.955828","request_id":12,"error":"success"}
+            {"event":"property-change","id":3,"name":"pause","data":false}
+            {"event":"property-change","id":4,"name":"path","data":"/srv/music/Vivaldi/01. Spring.ogg"}
+            {"event":"start-file","playlist_entry_id":2}
+            """;
+
+    /** The message class the previous implementation had Jackson fill in for each line. */
+    public static class MpvMessage {
+        public String event;
+        public Long id;
+        public String name;
+        public String data;
+        public String error;
+        public Long request_id;
+    }
+
+    private static final long POSITION_PROPERTY = 2;
+    private static final long DURATION_PROPERTY = 1;
+
+    private final Mapping mapping = new Mapping(new File("/srv/music"));
+    private final ByteBuffer buffer = ByteBuffer.wrap(MESSAGES.getBytes(StandardCharsets.UTF_8));
+    private Blackhole blackhole;
+    private final MpvEventDecoder decoder = new MpvEventDecoder(new MpvEventDecoder.EventHandler() {
+        @Override
+        public void property(int id, double value) {
+            blackhole.consume(value);
+        }
+
+        @Override
+        public void property(int id, boolean value) {
+            blackhole.consume(value);
+        }
+
+        @Override
+        public void property(int id, String value) {
+            blackhole.consume(value);
+        }
+
+        @Override
+        public void propertyUnavailable(int id) {
+            blackhole.consume(id);
+        }
+
+        @Override
+        public void event(String name) {
+            blackhole.consume(name);
+        }
+    }, (requestId, error, data) -> blackhole.consume(data));
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        buffer.clear();
+        decoder.decode(buffer);
+    }
+
+    @Benchmark
+    public void decodeWithJackson(Blackhole blackhole) {
+        buffer.clear();
+        // the previous implementation read lines as strings, then mapped each of them to a new MpvMessage
+        String text = StandardCharsets.UTF_8.decode(buffer).toString();
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) != -1) {
+            var message = mapping.readValue(text.substring(start, end), MpvMessage.class);
+            if (message.id != null && (message.id == POSITION_PROPERTY || message.id == DURATION_PROPERTY)) {
+                blackhole.consume((message.data == null) ? 0 : Double.parseDouble(message.data) * 1000);
+            } else {
+                blackhole.consume(message);
+            }
+            start = end + 1;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.gamboni.mserver.ui;
+
+import org.gamboni.mserver.DirectorySnapshot;
+import org.gamboni.mserver.DirectorySnapshot.ItemSnapshot;
+import org.gamboni.mserver.MServerController;
+import org.gamboni.mserver.MServerSocket;
+import org.gamboni.mserver.Zone;
+import org.gamboni.mserver.data.GlobalState;
+import org.gamboni.mserver.data.Item;
+import org.gamboni.mserver.data.PlayState;
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.library.MetadataCache;
+import org.gamboni.mserver.tech.Mapping;
+import org.openjdk.jmh.annotations.*;
+import spark.Spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/** Rendering directory pages of various sizes. The page needs a controller, which registers its services with Spark:
+ * the server is started on a random port, and keeps its data in a temporary directory. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryPageBenchmark {
+    private static final File ROOT = new File("/srv/music");
+
+    /** Number of entries in the directory. */
+    @Param({"100", "10000", "100000"})
+    int entries;
+
+    private Path dataDir;
+    private DirectoryPage page;
+    private DirectoryPage.Data data;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("mserver-bench");
+        System.setProperty("mserver.dataDir", dataDir.toString());
+        Spark.port(0);
+
+        var mapping = new Mapping(ROOT);
+        var zone = Zone.unnamed(List.of());
+        var controller = new MServerController(mapping, new MServerSocket(mapping), zone, ROOT,
+                new DirectoryListingCache(), new MetadataCache(mapping, dataDir.resolve("metadata.idx")));
+        page = new DirectoryPage(controller, mapping, new Style(), List.of(zone));
+
+        var folder = new File(ROOT, "Box Set");
+        List<ItemSnapshot> files = IntStream.range(0, entries)
+                .mapToObj(i -> {
+                    // a few subfolders, followed by tracks, some of them queued
+                    boolean directory = i < entries / 20;
+                    var item = new Item(new File(folder, directory ? "CD " + i : i + ". Track " + i + ".ogg"),
+                            directory);
+                    return new ItemSnapshot(item, (i % 10 == 0) ? PlayState.QUEUED : PlayState.STOPPED, false,
+                            item.friendlyName());
+                })
+                .toList();
+        data = new DirectoryPage.Data(new DirectorySnapshot(0, Map.of()), folder, files, GlobalState.STOPPED,
+                Optional.empty(), Optional.empty());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Spark.stop();
+    }
+
+    @Benchmark
+    public String render() {
+        return page.render(data).toString();
+    }
+
+    @Benchmark
+    public void renderStreaming() throws IOException {
+        page.render(data, Writer.nullWriter());
+    }
+}
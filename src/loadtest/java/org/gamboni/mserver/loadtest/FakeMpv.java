@@ -0,0 +1,277 @@
+package org.gamboni.mserver.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Stands in for mpv when load testing: speaks enough of its JSON IPC protocol for the server, without playing
+ * anything (so it runs on headless machines).
+ *
+ * <p>It takes the same arguments as mpv, but only uses {@code --input-ipc-server}. Its behaviour is scripted with
+ * system properties:</p>
+ * <ul>
+ *     <li>{@code fakempv.duration}: duration reported for every file, in seconds (default 180).</li>
+ *     <li>{@code fakempv.positionRate}: number of {@code playback-time} changes sent per second while playing
+ *     (default 4). With 0, the position is only sent when a file starts or when seeking, so that the only
+ *     broadcasts clients receive are those caused by their commands.</li>
+ *     <li>{@code fakempv.speed}: how much faster than real time files are "played" (default 1), so that files end,
+ *     and the server moves on through its queue, as often as needed.</li>
+ * </ul>
+ *
+ * <p>The server starts it instead of mpv when {@code mserver.mpv} is set to {@code java}, and {@code mserver.mpv.args}
+ * to the arguments running this class, one per line (see the {@code runWithFakeMpv} Gradle task).</p>
+ */
+public class FakeMpv {
+    private static final String IPC_OPTION = "--input-ipc-server=";
+    private static final double DURATION = Double.parseDouble(System.getProperty("fakempv.duration", "180"));
+    private static final double POSITION_RATE = Double.parseDouble(System.getProperty("fakempv.positionRate", "4"));
+    private static final double SPEED = Double.parseDouble(System.getProperty("fakempv.speed", "1"));
+    private static final Set<String> COMMANDS = Set.of("observe_property", "set_property", "cycle", "loadfile",
+            "playlist-clear", "stop", "seek", "quit");
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+
+    /* The following fields are guarded by this */
+    /** File being played, or null when idle. */
+    private String path = null;
+    /** Files to play after the current one. */
+    private final Deque<String> playlist = new ArrayDeque<>();
+    private boolean paused = false;
+    private double position = 0;
+    private long lastTick = System.nanoTime();
+
+    public static void main(String[] args) throws IOException {
+        Path socket = Arrays.stream(args)
+                .filter(arg -> arg.startsWith(IPC_OPTION))
+                .map(arg -> Path.of(arg.substring(IPC_OPTION.length())))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Missing " + IPC_OPTION));
+        new FakeMpv().run(socket);
+    }
+
+    private void run(Path socket) throws IOException {
+        Files.deleteIfExists(socket);
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.err.println("Fake mpv listening on " + socket);
+
+            var ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tick");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = (long) (1_000_000 / ((POSITION_RATE > 0) ? POSITION_RATE : 1));
+            ticker.scheduleAtFixedRate(this::tick, period, period, TimeUnit.MICROSECONDS);
+
+            while (true) {
+                var connection = new Connection(server.accept());
+                connections.add(connection);
+                new Thread(connection, "connection").start();
+            }
+        }
+    }
+
+    /** A client of the IPC socket (normally, the server). */
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        /** Ids of the properties observed by this client, by property name. */
+        private final Map<String, Integer> observed = new ConcurrentHashMap<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try (var in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(json.readTree(line));
+                }
+            } catch (IOException e) {
+                System.err.println("Connection lost: " + e);
+            } finally {
+                connections.remove(this);
+            }
+        }
+
+        private void handle(JsonNode message) throws IOException {
+            JsonNode command = message.path("command");
+            String name = command.path(0).asText();
+            Map<String, Object> reply = new LinkedHashMap<>();
+            reply.put("request_id", message.path("request_id").asLong());
+            reply.put("error", COMMANDS.contains(name) ? "success" : "unknown command");
+            synchronized (FakeMpv.this) {
+                // like mpv, acknowledge the command before sending the events it causes
+                send(reply);
+                execute(this, command);
+                if (name.equals("observe_property")) {
+                    String property = command.path(2).asText();
+                    notify(property, value(property));
+                }
+            }
+        }
+
+        void notify(String property, Object value) {
+            Integer id = observed.get(property);
+            if (id != null) {
+                Map<String, Object> message = new LinkedHashMap<>();
+                message.put("event", "property-change");
+                message.put("id", id);
+                message.put("name", property);
+                if (value != null) {
+                    // like mpv, leave out the value of unavailable properties
+                    message.put("data", value);
+                }
+                trySend(message);
+            }
+        }
+
+        void trySend(Map<String, Object> message) {
+            try {
+                send(message);
+            } catch (IOException e) {
+                System.err.println("Could not send " + message + ": " + e);
+            }
+        }
+
+        synchronized void send(Map<String, Object> message) throws IOException {
+            var bytes = ByteBuffer.wrap((json.writeValueAsString(message) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    private synchronized void execute(Connection client, JsonNode command) {
+        switch (command.path(0).asText()) {
+            case "observe_property" -> client.observed.put(command.path(2).asText(), command.path(1).asInt());
+            case "set_property" -> {
+                if (command.path(1).asText().equals("pause")) {
+                    setPaused(command.path(2).asBoolean());
+                }
+            }
+            case "cycle" -> {
+                if (command.path(1).asText().equals("pause")) {
+                    setPaused(!paused);
+                }
+            }
+            case "loadfile" -> {
+                String file = command.path(1).asText();
+                if (command.path(2).asText("replace").equals("append")) {
+                    playlist.add(file);
+                } else {
+                    playlist.clear();
+                    start(file);
+                }
+            }
+            case "playlist-clear" -> playlist.clear();
+            case "stop" -> {
+                playlist.clear();
+                stop();
+            }
+            case "seek" -> {
+                if (path != null) {
+                    position = Math.max(0, Math.min(command.path(1).asDouble(), DURATION));
+                    notifyAll("playback-time");
+                }
+            }
+            case "quit" -> System.exit(0);
+            default -> {}
+        }
+    }
+
+    private void setPaused(boolean paused) {
+        if (this.paused != paused) {
+            this.paused = paused;
+            notifyAll("pause");
+        }
+    }
+
+    private void start(String file) {
+        path = file;
+        position = 0;
+        lastTick = System.nanoTime();
+        event("start-file");
+        notifyAll("idle-active");
+        notifyAll("path");
+        notifyAll("duration");
+        notifyAll("playback-time");
+        event("file-loaded");
+    }
+
+    private void stop() {
+        if (path != null) {
+            path = null;
+            event("end-file");
+            notifyAll("path");
+            notifyAll("duration");
+            notifyAll("playback-time");
+            notifyAll("idle-active");
+            event("idle");
+        }
+    }
+
+    private synchronized void tick() {
+        long now = System.nanoTime();
+        if (path != null && !paused) {
+            position += (now - lastTick) / 1e9 * SPEED;
+            if (position >= DURATION) {
+                String next = playlist.poll();
+                if (next == null) {
+                    stop();
+                } else {
+                    event("end-file");
+                    start(next);
+                }
+            } else if (POSITION_RATE > 0) {
+                notifyAll("playback-time");
+            }
+        }
+        lastTick = now;
+    }
+
+    /** Current value of a property, or null if it is unavailable. */
+    private Object value(String property) {
+        return switch (property) {
+            case "duration" -> (path == null) ? null : DURATION;
+            case "playback-time" -> (path == null) ? null : position;
+            case "pause" -> paused;
+            case "path" -> path;
+            case "idle-active" -> path == null;
+            default -> null;
+        };
+    }
+
+    private void notifyAll(String property) {
+        Object value = value(property);
+        for (var connection : connections) {
+            connection.notify(property, value);
+        }
+    }
+
+    private void event(String name) {
+        for (var connection : connections) {
+            connection.trySend(Map.of("event", name));
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.gamboni.mserver.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/** Simulates many browsers connected to a running server, and measures how long it takes for the effect of a command
+ * to reach all of them.
+ *
+ * <p>Each simulated client opens a web socket and subscribes to a directory, like the directory page does. The
+ * driver then sends {@code play}, {@code pause} and {@code skip} commands one at a time (roughly 60%, 20% and 20% of
+ * them, pausing and skipping only while a file is playing), and for each command, records when every client receives
+ * the change it causes. It reports:</p>
+ * <ul>
+ *     <li>the median and 99th percentile of the latency between sending a command and a client receiving the
+ *     resulting broadcast, over all clients and commands;</li>
+ *     <li>the median and 99th percentile of the latency until <em>all</em> clients received it;</li>
+ *     <li>the number of deliveries that did not happen within the timeout;</li>
+ *     <li>throughput, in commands and messages per second.</li>
+ * </ul>
+ *
+ * <p>Messages are matched to a command by the change it is expected to cause: for {@code play}, the file becoming
+ * {@code PLAYING} (or {@code QUEUED}, when something is playing already); for {@code pause}, the player switching
+ * between playing and paused; for {@code skip}, the playing file leaving the {@code PLAYING} state. Other messages,
+ * such as late ones about a previous command, are only counted for throughput. The server is best driven by
+ * {@link FakeMpv} with {@code fakempv.positionRate=0}, and a {@code fakempv.duration} long enough for files not to end
+ * by themselves during a command.</p>
+ *
+ * <p>Options, all of the form {@code --name=value}:</p>
+ * <ul>
+ *     <li>{@code server}: base URL of the server (default {@code http://localhost:4568}).</li>
+ *     <li>{@code zone}: zone to drive (default: the unnamed one).</li>
+ *     <li>{@code directory}: directory the clients subscribe to, relative to the server's root; files to play are
+ *     picked among its entries (default: the root).</li>
+ *     <li>{@code clients}: number of web socket clients (default 200).</li>
+ *     <li>{@code commands}: number of commands to send (default 500).</li>
+ *     <li>{@code timeout}: how long to wait for a broadcast to reach all clients, in milliseconds (default 5000).</li>
+ *     <li>{@code socket}: path of the web socket endpoint (default {@code /sock}).</li>
+ * </ul>
+ */
+public class LoadDriver {
+    private static final String STOPPED = "STOPPED";
+    private static final String PLAYING = "PLAYING";
+    private static final String QUEUED = "QUEUED";
+    private static final String PAUSED = "PAUSED";
+    /** Names of the play states of files: events holding one of them are about a file. */
+    private static final Set<String> PLAY_STATES = Set.of(STOPPED, PLAYING, QUEUED, PAUSED);
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final Random random = new Random();
+
+    private final String server;
+    private final String prefix;
+    private final String zone;
+    private final String directory;
+    private final int clientCount;
+    private final int commandCount;
+    private final Duration timeout;
+    private final String socketPath;
+
+    /** Command currently waiting for its broadcast. */
+    private volatile Round round;
+    private final AtomicLong messages = new AtomicLong();
+
+    /* Player state, as broadcast to the first client */
+    /** Files of the directory. */
+    private final Set<String> files = new HashSet<>();
+    /** Files of the directory being played (normally at most one). */
+    private final Set<String> playing = ConcurrentHashMap.newKeySet();
+    private volatile boolean paused;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new LoadDriver(options).run();
+    }
+
+    private LoadDriver(Map<String, String> options) {
+        this.server = options.getOrDefault("server", "http://localhost:4568").replaceAll("/$", "");
+        this.zone = options.get("zone");
+        this.prefix = (zone == null) ? "" : "/zones/" + zone;
+        this.directory = options.getOrDefault("directory", "").replaceAll("^/|/$", "");
+        this.clientCount = Integer.parseInt(options.getOrDefault("clients", "200"));
+        this.commandCount = Integer.parseInt(options.getOrDefault("commands", "500"));
+        this.timeout = Duration.ofMillis(Long.parseLong(options.getOrDefault("timeout", "5000")));
+        this.socketPath = options.getOrDefault("socket", "/sock");
+    }
+
+    /** Arrival times of the broadcast caused by a command. */
+    private static class Round {
+        final long start = System.nanoTime();
+        /** Whether an event is the broadcast this round is waiting for. */
+        final Predicate<JsonNode> expected;
+        /** Latency of the broadcast to each client, 0 until it is received. */
+        final AtomicLongArray latencies;
+        final CountDownLatch received;
+
+        Round(int clients, Predicate<JsonNode> expected) {
+            this.expected = expected;
+            latencies = new AtomicLongArray(clients);
+            received = new CountDownLatch(clients);
+        }
+
+        void arrived(int client) {
+            if (latencies.compareAndSet(client, 0, Math.max(1, System.nanoTime() - start))) {
+                received.countDown();
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        JsonNode listing = json.readTree(get(prefix + "/list/" + encodedDirectory() + "?limit=1000"));
+        for (JsonNode item : listing.path("items")) {
+            if (!item.path("directory").asBoolean()) {
+                String file = item.path("file").asText();
+                files.add(file);
+                if (item.path("state").asText().equals(PLAYING)) {
+                    playing.add(file);
+                }
+            }
+        }
+        List<String> playable = List.copyOf(files);
+        if (files.isEmpty()) {
+            throw new IllegalStateException("No file to play in /" + directory);
+        }
+
+        Map<String, Object> hello = new LinkedHashMap<>();
+        hello.put("directory", "/" + directory);
+        hello.put("stamp", listing.path("stamp").asLong());
+        hello.put("zone", zone);
+        String helloMessage = json.writeValueAsString(hello);
+
+        System.err.println("Connecting " + clientCount + " clients");
+        // the initial updates sent in reply to the hello count as the first round. They include the player's state
+        round = new Round(clientCount, event -> globalState(event).isPresent());
+        List<WebSocket> sockets = new ArrayList<>();
+        String wsUrl = server.replaceFirst("^http", "ws") + socketPath;
+        for (int i = 0; i < clientCount; i++) {
+            WebSocket socket = http.newWebSocketBuilder()
+                    .buildAsync(URI.create(wsUrl), new Client(i))
+                    .join();
+            socket.sendText(helloMessage, true);
+            sockets.add(socket);
+        }
+        if (!round.received.await(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            System.err.println(round.received.getCount() + " clients did not receive their initial state");
+        }
+
+        List<Long> clientLatencies = new ArrayList<>();
+        List<Long> allClientLatencies = new ArrayList<>();
+        long timeouts = 0;
+        String lastPlayed = null;
+        messages.set(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < commandCount; i++) {
+            // pausing or skipping while nothing plays changes nothing, so there would be no broadcast to wait for
+            double draw = playing.isEmpty() ? 0 : random.nextDouble();
+            String service;
+            String body;
+            Predicate<JsonNode> expected;
+            if (draw < 0.6) {
+                // playing the file being played already may not change anything, so pick another one
+                String file;
+                do {
+                    file = playable.get(random.nextInt(playable.size()));
+                } while (file.equals(lastPlayed) && playable.size() > 1);
+                lastPlayed = file;
+                service = "play";
+                body = file;
+                String played = file;
+                expected = event -> fileState(event)
+                        .filter(state -> state.file().equals(played) &&
+                                (state.state().equals(PLAYING) || state.state().equals(QUEUED)))
+                        .isPresent();
+            } else if (draw < 0.8) {
+                service = "pause";
+                body = "";
+                String toggled = paused ? PLAYING : PAUSED;
+                expected = event -> globalState(event).equals(Optional.of(toggled));
+            } else {
+                service = "skip";
+                body = "";
+                Set<String> skipped = Set.copyOf(playing);
+                expected = event -> fileState(event)
+                        .filter(state -> skipped.contains(state.file()) && !state.state().equals(PLAYING))
+                        .isPresent();
+            }
+
+            Round current = new Round(clientCount, expected);
+            round = current;
+            post(prefix + "/" + service, body);
+            boolean complete = current.received.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            long slowest = 0;
+            for (int client = 0; client < clientCount; client++) {
+                long latency = current.latencies.get(client);
+                if (latency == 0) {
+                    timeouts++;
+                } else {
+                    clientLatencies.add(latency);
+                    slowest = Math.max(slowest, latency);
+                }
+            }
+            if (complete) {
+                allClientLatencies.add(slowest);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("clients: %d, commands: %d, timeouts: %d%n", clientCount, commandCount, timeouts);
+        System.out.printf("latency to each client: p50 %s, p99 %s%n",
+                percentile(clientLatencies, 50), percentile(clientLatencies, 99));
+        System.out.printf("latency to all clients: p50 %s, p99 %s%n",
+                percentile(allClientLatencies, 50), percentile(allClientLatencies, 99));
+        System.out.printf("throughput: %.1f commands/s, %.1f messages/s%n",
+                commandCount / seconds, messages.get() / seconds);
+
+        for (var socket : sockets) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+        }
+    }
+
+    private class Client implements WebSocket.Listener {
+        private final int index;
+        /** Text of the message being received, as it may come in several parts. */
+        private final StringBuilder text = new StringBuilder();
+
+        Client(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                messages.incrementAndGet();
+                received(text.toString());
+                text.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void received(String message) {
+            List<JsonNode> events = new ArrayList<>();
+            try {
+                collectEvents(json.readTree(message), events);
+            } catch (IOException e) {
+                System.err.println("Client " + index + " received an invalid message: " + e.getMessage());
+                return;
+            }
+            Round current = round;
+            boolean expected = false;
+            for (JsonNode event : events) {
+                if (index == 0) {
+                    // all clients receive the same changes: follow them once
+                    track(event);
+                }
+                expected |= current.expected.test(event);
+            }
+            // after tracking, so that the next command is chosen knowing the effect of this one
+            if (expected) {
+                current.arrived(index);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            System.err.println("Client " + index + " failed: " + error);
+        }
+    }
+
+    /** A file changing state.
+     *
+     * @param file the file, as listed by the server.
+     * @param state the name of its new play state.
+     */
+    private record FileState(String file, String state) {}
+
+    /** Collect the events of a message: the objects it holds, whatever the way they are wrapped. */
+    private static void collectEvents(JsonNode node, List<JsonNode> events) {
+        if (node.isObject()) {
+            events.add(node);
+        }
+        node.forEach(child -> collectEvents(child, events));
+    }
+
+    /** If the given event is about a file of the directory, the file and its new state. */
+    private Optional<FileState> fileState(JsonNode event) {
+        String file = null;
+        String state = null;
+        for (JsonNode value : event) {
+            if (value.isTextual()) {
+                if (PLAY_STATES.contains(value.asText())) {
+                    state = value.asText();
+                } else if (files.contains(value.asText())) {
+                    file = value.asText();
+                }
+            }
+        }
+        return (file == null || state == null) ? Optional.empty() : Optional.of(new FileState(file, state));
+    }
+
+    /** If the given event is a change of the player's state, the name of the new state ({@code PLAYING},
+     * {@code PAUSED} or {@code STOPPED}). Playing states have a start time, paused ones a position, and stopped ones
+     * hold nothing but perhaps some text (unlike file states, they don't hold a play state name). */
+    private static Optional<String> globalState(JsonNode event) {
+        if (event.has("started") && event.has("duration")) {
+            return Optional.of(PLAYING);
+        } else if (event.has("position") && event.has("duration")) {
+            return Optional.of(PAUSED);
+        }
+        for (JsonNode value : event) {
+            if (!value.isTextual() || PLAY_STATES.contains(value.asText())) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(STOPPED);
+    }
+
+    private void track(JsonNode event) {
+        fileState(event).ifPresentOrElse(change -> {
+            if (change.state().equals(PLAYING)) {
+                playing.add(change.file());
+            } else {
+                playing.remove(change.file());
+            }
+        }, () -> globalState(event).ifPresent(state -> paused = state.equals(PAUSED)));
+    }
+
+    private String encodedDirectory() {
+        StringBuilder path = new StringBuilder();
+        for (String segment : directory.split("/")) {
+            if (!segment.isEmpty()) {
+                path.append(URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20")).append('/');
+            }
+        }
+        return path.toString();
+    }
+
+    private String get(String path) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(server + path)).GET());
+    }
+
+    private void post(String path, String body) throws IOException, InterruptedException {
+        send(HttpRequest.newBuilder(URI.create(server + path)).POST(HttpRequest.BodyPublishers.ofString(body)));
+    }
+
+    private String send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        var response = http.send(request.timeout(timeout).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException(response.request().uri() + " returned " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    /** Format the given percentile of the given nanosecond latencies, in milliseconds. */
+    private static String percentile(List<Long> latencies, int percent) {
+        if (latencies.isEmpty()) {
+            return "n/a";
+        }
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return String.format("%.2f ms", sorted[Math.max(rank, 0)] / 1e6);
+    }
+}
@@ -2,6 +2,7 @@ package org.gamboni.mserver;
 
 import org.gamboni.mserver.data.Item;
 import org.gamboni.mserver.data.PlayState;
+import org.gamboni.mserver.library.DirectoryListing;
 import org.gamboni.tech.history.Stamped;
 
 import java.io.File;
@@ -12,7 +13,7 @@ public record DirectorySnapshot(long stamp, Map<File, PlayState> states) impleme
         return states.getOrDefault(file, PlayState.STOPPED);
     }
 
-    public record ItemSnapshot(Item item, PlayState state) {
+    public record ItemSnapshot(Item item, PlayState state, boolean hasArt, String friendlyName) {
         public boolean isDirectory() {
             return item.isDirectory();
         }
@@ -21,16 +22,12 @@ public record DirectorySnapshot(long stamp, Map<File, PlayState> states) impleme
             return item.name;
         }
 
-        public String friendlyName() {
-            return item.friendlyName();
-        }
-
         public File file() {
             return item.file;
         }
     }
 
-    public ItemSnapshot getItem(File file) {
-        return new ItemSnapshot(new Item(file), getFileState(file));
+    public ItemSnapshot getItem(DirectoryListing.Entry entry, String friendlyName) {
+        return new ItemSnapshot(entry.item(), getFileState(entry.item().file), entry.hasArt(), friendlyName);
     }
 }
@@ -0,0 +1,269 @@
+package org.gamboni.mserver;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.PlayState;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** Play state changes of a zone, kept on disk so that clients can catch up with changes they missed, even across
+ * restarts.
+ *
+ * <p>The log is a memory-mapped file of records: length, CRC32 and payload (stamp, state and file path). Records are
+ * appended in stamp order, and some stamps are indexed with the offset of their first record, so that catching up
+ * only reads records from the nearest indexed stamp on. When the file is full, its oldest half is dropped: clients
+ * that are further behind than that need a full resync.</p>
+ *
+ * <p>Records are appended by one thread at a time (the one running update sessions), and read concurrently by
+ * clients catching up, without locking. The operating system writes mapped pages back to disk on its own: if the
+ * server is killed, nothing is lost. A torn tail (after a power failure) is detected by its checksum on startup, and
+ * dropped.</p>
+ */
+@Slf4j
+public class HistoryLog {
+    private static final int MAGIC = 0x4d53484c; // "MSHL"
+    private static final int VERSION = 1;
+    /** Magic, version and origin. */
+    private static final int HEADER_SIZE = 16;
+    /** Length and CRC. */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Stamp and state. */
+    private static final int MIN_PAYLOAD_SIZE = 9;
+    private static final int CAPACITY = Integer.getInteger("mserver.historyLogSize", 16 << 20);
+    /** Index the first new stamp after every this many bytes of records. */
+    private static final int INDEX_INTERVAL = 4096;
+    private static final PlayState[] STATES = PlayState.values();
+
+    private static class Segment {
+        final MappedByteBuffer buffer;
+        /** Clients whose stamp is at least this one can catch up from this segment: it holds all later changes. */
+        final long origin;
+        /** Some stamps, mapped to the offset of their first record. */
+        final NavigableMap<Long, Integer> index = new ConcurrentSkipListMap<>();
+        /** Offset following the last complete record. */
+        volatile int end = HEADER_SIZE;
+
+        Segment(MappedByteBuffer buffer, long origin) {
+            this.buffer = buffer;
+            this.origin = origin;
+        }
+    }
+
+    private final Path file;
+    /** Null if the log could not be opened. */
+    private volatile Segment segment;
+    private volatile long lastStamp = 0;
+    /* The following fields are only accessed by the appending thread */
+    private int lastIndexed = HEADER_SIZE;
+
+    public HistoryLog(Path file) {
+        this.file = file;
+    }
+
+    /** Stamp of the last change made to the log. Later changes always have a greater stamp, even after a restart. */
+    public long getLastStamp() {
+        return lastStamp;
+    }
+
+    /** Load the log, and start recording changes. Must be called once, before appending anything.
+     *
+     * @return the files that were not {@link PlayState#STOPPED} when the log was last written to, mapped to their
+     * state.
+     */
+    public Map<String, PlayState> recover() {
+        Map<String, PlayState> states = new HashMap<>();
+        try {
+            Files.createDirectories(file.getParent());
+            MappedByteBuffer buffer;
+            try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                if (channel.size() >= HEADER_SIZE) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(CAPACITY, channel.size()));
+                    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                        log.info("Ignoring incompatible history log {}", file);
+                        channel.truncate(0);
+                        buffer = null;
+                    }
+                } else {
+                    buffer = null;
+                }
+                if (buffer == null) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+                    writeHeader(buffer, 0);
+                }
+            }
+            Segment loaded = new Segment(buffer, buffer.getLong(8));
+            lastStamp = loaded.origin;
+            readRecords(loaded, states);
+            segment = loaded;
+        } catch (IOException e) {
+            log.warn("Could not open {}, clients will not catch up after a restart", file, e);
+        }
+        return states;
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, long origin) {
+        buffer.putInt(0, MAGIC)
+                .putInt(4, VERSION)
+                .putLong(8, origin);
+    }
+
+    private void readRecords(Segment loaded, Map<String, PlayState> states) {
+        var buffer = loaded.buffer;
+        int offset = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < MIN_PAYLOAD_SIZE || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(offset + RECORD_HEADER_SIZE, payload);
+            crc.reset();
+            crc.update(payload);
+            long stamp = buffer.getLong(offset + RECORD_HEADER_SIZE);
+            int state = payload[8];
+            if ((int) crc.getValue() != buffer.getInt(offset + 4) || stamp < lastStamp || state >= STATES.length) {
+                break;
+            }
+            String path = new String(payload, MIN_PAYLOAD_SIZE, length - MIN_PAYLOAD_SIZE, UTF_8);
+            if (STATES[state] == PlayState.STOPPED) {
+                states.remove(path);
+            } else {
+                states.put(path, STATES[state]);
+            }
+            index(loaded, stamp, offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        loaded.end = offset;
+        if (offset + 4 <= buffer.capacity() && buffer.getInt(offset) != 0) {
+            log.info("Dropping the torn tail of {}", file);
+            // so that records appended from now on are never followed by stale ones
+            buffer.put(offset, new byte[buffer.capacity() - offset]);
+        }
+    }
+
+    /** Record a change. Must be called by one thread at a time, with non-decreasing stamps. */
+    public void append(long stamp, String path, PlayState state) {
+        Segment current = segment;
+        if (current != null) {
+            byte[] pathBytes = path.getBytes(UTF_8);
+            int length = MIN_PAYLOAD_SIZE + pathBytes.length;
+            if (current.end + RECORD_HEADER_SIZE + length > current.buffer.capacity()) {
+                current = rotate(current);
+            }
+            if (current != null) {
+                write(current, stamp, state, pathBytes);
+            }
+        }
+        lastStamp = stamp;
+    }
+
+    private void write(Segment current, long stamp, PlayState state, byte[] path) {
+        int offset = current.end;
+        byte[] payload = new byte[MIN_PAYLOAD_SIZE + path.length];
+        var fields = ByteBuffer.wrap(payload);
+        fields.putLong(stamp)
+                .put((byte) state.ordinal())
+                .put(path);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        current.buffer.putInt(offset, payload.length)
+                .putInt(offset + 4, (int) crc.getValue())
+                .put(offset + RECORD_HEADER_SIZE, payload);
+        index(current, stamp, offset);
+        // publish the record to readers
+        current.end = offset + RECORD_HEADER_SIZE + payload.length;
+    }
+
+    private void index(Segment current, long stamp, int offset) {
+        if (current.index.isEmpty() || (stamp > lastStamp && offset - lastIndexed >= INDEX_INTERVAL)) {
+            current.index.put(stamp, offset);
+            lastIndexed = offset;
+        }
+        lastStamp = stamp;
+    }
+
+    /** Start a new file holding the most recent half of the given one.
+     *
+     * @return the new segment, or null if the log could not be written to (in which case it is disabled).
+     */
+    private Segment rotate(Segment full) {
+        int middle = (HEADER_SIZE + full.end) / 2;
+        var cut = full.index.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue() >= middle)
+                .findFirst()
+                // a single stamp filling the log: drop everything
+                .orElse(Map.entry(lastStamp + 1, full.end));
+        int kept = full.end - cut.getValue();
+        try {
+            Path temp = Files.createTempFile(file.getParent(), "history", ".tmp");
+            MappedByteBuffer buffer;
+            try (var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(CAPACITY, HEADER_SIZE + kept));
+            }
+            Segment rotated = new Segment(buffer, cut.getKey() - 1);
+            writeHeader(buffer, rotated.origin);
+            buffer.put(HEADER_SIZE, full.buffer, cut.getValue(), kept);
+            for (var entry : full.index.tailMap(cut.getKey(), true).entrySet()) {
+                rotated.index.put(entry.getKey(), entry.getValue() - cut.getValue() + HEADER_SIZE);
+            }
+            rotated.end = HEADER_SIZE + kept;
+            lastIndexed = rotated.index.isEmpty() ? HEADER_SIZE : rotated.index.lastEntry().getValue();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("History log {} is full, dropped changes up to {}", file, rotated.origin);
+            segment = rotated;
+            return rotated;
+        } catch (IOException e) {
+            log.warn("Could not write {}, clients will not catch up after a restart", file, e);
+            segment = null;
+            return null;
+        }
+    }
+
+    /** Latest state of the files of a directory that changed after the given stamp.
+     *
+     * @param directory path of the directory, as given by {@link org.gamboni.mserver.tech.Mapping#fileToPath}.
+     * @return the paths of those files, in the order of their last change, mapped to their state; or an empty
+     * Optional if some of these changes are no longer in the log.
+     */
+    public Optional<Map<String, PlayState>> changesSince(long stamp, String directory) {
+        Segment current = segment;
+        if (current == null || stamp < current.origin) {
+            return Optional.empty();
+        }
+        var buffer = current.buffer;
+        int end = current.end;
+        var start = current.index.floorEntry(stamp);
+        int offset = (start == null) ? HEADER_SIZE : start.getValue();
+        Map<String, PlayState> changes = new LinkedHashMap<>();
+        while (offset < end) {
+            int length = buffer.getInt(offset);
+            if (buffer.getLong(offset + RECORD_HEADER_SIZE) > stamp) {
+                byte[] path = new byte[length - MIN_PAYLOAD_SIZE];
+                buffer.get(offset + RECORD_HEADER_SIZE + MIN_PAYLOAD_SIZE, path);
+                String decoded = new String(path, UTF_8);
+                if (decoded.startsWith(directory) && decoded.lastIndexOf(File.separatorChar) == directory.length()) {
+                    // move it to the end
+                    changes.remove(decoded);
+                    changes.put(decoded, STATES[buffer.get(offset + RECORD_HEADER_SIZE + 8)]);
+                }
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return Optional.of(changes);
+    }
+}
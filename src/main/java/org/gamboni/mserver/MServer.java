@@ -4,17 +4,35 @@
 package org.gamboni.mserver;
 
 import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.Item;
+import org.gamboni.mserver.data.ListingItem;
+import org.gamboni.mserver.data.ListingPage;
+import org.gamboni.mserver.data.SearchResult;
+import org.gamboni.mserver.library.DirectoryListing;
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.library.LibraryIndex;
+import org.gamboni.mserver.library.MetadataCache;
+import org.gamboni.mserver.library.SearchIndex;
+import org.gamboni.mserver.tech.HttpCompression;
 import org.gamboni.mserver.tech.Mapping;
+import org.gamboni.mserver.tech.MediaFileHandler;
 import org.gamboni.mserver.ui.DirectoryPage;
 import org.gamboni.mserver.ui.Style;
+import spark.Request;
 import spark.Response;
 import spark.Spark;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.util.Comparator;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Optional;
 
 import static java.util.Arrays.asList;
 
@@ -25,70 +43,266 @@ import static java.util.Arrays.asList;
 @Slf4j
 public class MServer {
 
+	private static final String ZONE_OPTION = "--zone=";
+
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			System.err.println("Usage: MServer <path> [extra mplayer parameters]");
+			System.err.println("Usage: MServer <path> [--zone=<name>[:<player parameter>[,...]]...] " +
+					"[extra mplayer parameters]");
 			System.exit(255);
 		}
-		new MServer(new File(args[0]), asList(args).subList(1, args.length)).run();
+		List<String> options = asList(args).subList(1, args.length);
+		List<String> playerArgs = options.stream()
+				.filter(option -> !option.startsWith(ZONE_OPTION))
+				.toList();
+		List<Zone> zones = options.stream()
+				.filter(option -> option.startsWith(ZONE_OPTION))
+				.map(option -> Zone.parse(option.substring(ZONE_OPTION.length()), playerArgs))
+				.toList();
+		new MServer(new File(args[0]).getAbsoluteFile(),
+				zones.isEmpty() ? List.of(Zone.unnamed(playerArgs)) : zones).run();
 	}
 
-	private final MServerController controller;
+	/** Number of search results returned when the client does not specify a limit. */
+	private static final int DEFAULT_SEARCH_LIMIT = 200;
+	private static final int MAX_SEARCH_LIMIT = 1000;
+
+	/** Number of items rendered with a directory page, and then loaded at once as the user scrolls. */
+	private static final int PAGE_SIZE = 120;
+	private static final int MAX_LIST_LIMIT = 1000;
+
+	private static final String HTML = "text/html;charset=utf-8";
+
+	/** Where the server keeps its own files, such as the library index. */
+	static final Path DATA_DIR = Path.of(System.getProperty("mserver.dataDir",
+			System.getProperty("user.home") + File.separator + ".mserver"));
+
+	/** The controller and pages of a zone. */
+	private record ZoneUi(Zone zone, MServerController controller, DirectoryPage page) {}
+
+	private final List<ZoneUi> zones = new ArrayList<>();
 	private final File root;
-	private final DirectoryPage page;
 	private final Mapping mapping;
+	private final MediaFileHandler fileHandler = new MediaFileHandler();
+	private final DirectoryListingCache listings = new DirectoryListingCache();
+	private final SearchIndex search;
+	private final MetadataCache metadata;
 	
-	public MServer(File root, List<String> extraParams) {
+	public MServer(File root, List<Zone> zones) {
 		this.root = root;
 		this.mapping = new Mapping(root);
 
 		Spark.port(4568);
 
 		Spark.exception(Exception.class, (ex, req, res) -> log.error("Uncaught Exception", ex));
+		Spark.exception(BadParameterException.class, (ex, req, res) -> {
+			res.status(400);
+			res.body(ex.getMessage());
+		});
 
 		Spark.staticFiles.location("static");
 
 		// WARN: web socket creation must be done before any route, so this must come first
 		var socketHandler = new MServerSocket(mapping);
-		this.controller = new MServerController(mapping, socketHandler, root, extraParams);
+		this.metadata = new MetadataCache(mapping, DATA_DIR.resolve("metadata.idx"));
+		List<MServerController> controllers = zones.stream()
+				.map(zone -> new MServerController(mapping, socketHandler, zone, root, listings, metadata))
+				.toList();
+		// these must listen before the index is loaded, so that they see all listings
+		this.search = new SearchIndex(mapping, listings);
+		listings.addListener(metadata);
+		new LibraryIndex(root, listings, DATA_DIR.resolve("library.idx")).start();
 
 		var style = new Style();
-		this.page = new DirectoryPage(controller, mapping, style);
+		for (var controller : controllers) {
+			this.zones.add(new ZoneUi(controller.getZone(), controller,
+					new DirectoryPage(controller, mapping, style, zones)));
+		}
 	}
 	
 	private void run() {
-		Spark.redirect.get("/", "/browse/");
+		Spark.redirect.get("/", zones.get(0).zone().prefix() + "/browse/");
+
+		zones.forEach(this::addRoutes);
 
-		Spark.get("/browse/*", (req, res) -> {
+		Spark.get("/search.json", (req, res) -> {
+			res.type("application/json");
+			HttpCompression.compressIfAccepted(req, res);
+			return mapping.writeValueAsString(search(req).stream()
+					.map(entry -> new SearchResult(
+							entry.item().file,
+							metadata.title(entry.item()),
+							entry.item().isDirectory()))
+					.toList());
+		});
+	}
+
+	/** Add the routes of pages (and files) of the given zone. */
+	private void addRoutes(ZoneUi zone) {
+		var controller = zone.controller();
+		var page = zone.page();
+		String prefix = zone.zone().prefix();
+
+		Spark.get(prefix + "/browse/*", (req, res) -> {
 			File childFolder = (req.splat().length == 0) ? root : mapping.pathToFile(req.splat()[0]);
 
-			if (childFolder.isFile()) {
-				try (var in = new FileInputStream(childFolder)) {
-					in.transferTo(res.raw().getOutputStream());
-					res.raw().flushBuffer();
+			// try the listing cache first, so that neither browsing a known directory nor serving a file in one
+			// touches the disk (beyond reading the file)
+			if (listings.cachedEntry(childFolder).filter(entry -> !entry.item().isDirectory()).isPresent()) {
+				return fileHandler.serve(req, res, childFolder, new Item(childFolder).mimeType());
+			}
+			Optional<DirectoryListing> listing = listings.get(childFolder);
+			if (listing.isPresent()) {
+				return servePage(zone, listing.get(), req, res);
+			} else if (childFolder.isFile()) {
+				return fileHandler.serve(req, res, childFolder, new Item(childFolder).mimeType());
+			} else {
+				return notFound(res, "Could not list files under " + childFolder);
+			}
+		});
+
+		Spark.get(prefix + "/search", (req, res) -> {
+			var results = search(req);
+			DirectorySnapshot snapshot = controller.getStore().getSnapshot(results.stream()
+					.map(entry -> entry.item().file)
+					.toList());
+			// the page subscribes to updates of these directories
+			List<File> directories = results.stream()
+					.map(entry -> entry.item().file.getParentFile())
+					.distinct()
+					.toList();
+			res.type(HTML);
+			try (Writer out = writer(req, res)) {
+				page.render(new DirectoryPage.Data(
+						snapshot,
+						root,
+						items(snapshot, results),
+						controller.getStore().getGlobalState(),
+						Optional.empty(),
+						Optional.of(directories)), out);
+			}
+			return "";
+		});
+
+		/* Parts of directory listings, as JSON (or as HTML items to append to a directory page, with format=html).
+		 * Supports either cursor or offset, and limit. */
+		Spark.get(prefix + "/list/*", (req, res) -> {
+			File folder = (req.splat().length == 0) ? root : mapping.pathToFile(req.splat()[0]);
+			Optional<DirectoryListing> listing = listings.get(folder);
+			if (listing.isEmpty()) {
+				return notFound(res, "Could not list files under " + folder);
+			}
+			var slice = listing.get().slice(
+					Optional.ofNullable(req.queryParams("cursor")),
+					intParam(req, "offset", 0),
+					Math.min(intParam(req, "limit", PAGE_SIZE), MAX_LIST_LIMIT));
+			DirectorySnapshot snapshot = controller.getStore().getSnapshot(folder);
+
+			if ("html".equals(req.queryParams("format"))) {
+				res.type(HTML);
+				slice.next().ifPresent(cursor -> res.header(DirectoryPage.NEXT_HEADER, moreUrl(zone.zone(), folder, cursor)));
+				try (Writer out = writer(req, res)) {
+					page.writeItems(items(snapshot, slice.entries()), out);
 				}
-				return null;
+				return "";
 			} else {
-				return servePage(res, childFolder);
+				res.type("application/json");
+				HttpCompression.compressIfAccepted(req, res);
+				return mapping.writeValueAsString(new ListingPage(
+						snapshot.stamp(),
+						slice.entries().stream()
+								.map(entry -> new ListingItem(
+										entry.item().file,
+										metadata.title(entry.item()),
+										entry.item().isDirectory(),
+										entry.hasArt(),
+										snapshot.getFileState(entry.item().file)))
+								.toList(),
+						slice.next().orElse(null)));
 			}
 		});
 	}
 
-	private String servePage(Response res, File childFolder) {
-		File[] files = childFolder.listFiles();
-		if (files == null) {
-			return notFound(res, "Could not list files under " + childFolder);
+	private List<DirectoryListing.Entry> search(Request req) {
+		String query = req.queryParams("q");
+		return search.search(query == null ? "" : query,
+				Math.min(intParam(req, "limit", DEFAULT_SEARCH_LIMIT), MAX_SEARCH_LIMIT));
+	}
+
+	/** A request parameter has an invalid value: the client gets a 400 Bad Request response. */
+	private static class BadParameterException extends IllegalArgumentException {
+		BadParameterException(String message) {
+			super(message);
 		}
+	}
+
+	/** Value of an optional non-negative integer query parameter.
+	 *
+	 * @throws BadParameterException if the parameter is present, but not a non-negative integer.
+	 */
+	private static int intParam(Request req, String name, int defaultValue) {
+		String value = req.queryParams(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int parsed = Integer.parseInt(value);
+			if (parsed >= 0) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new BadParameterException("Invalid " + name + ": " + value);
+	}
+
+	/** Render the first items of a directory. The other items are loaded as the user scrolls. */
+	private String servePage(ZoneUi zone, DirectoryListing listing, Request req, Response res) throws IOException {
+		File childFolder = listing.directory();
+		DirectorySnapshot directorySnapshot = zone.controller().getStore().getSnapshot(childFolder);
+		var slice = listing.slice(Optional.empty(), 0, PAGE_SIZE);
+		res.type(HTML);
+		try (Writer out = writer(req, res)) {
+			zone.page().render(new DirectoryPage.Data(
+					directorySnapshot,
+					childFolder,
+					items(directorySnapshot, slice.entries()),
+					zone.controller().getStore().getGlobalState(),
+					slice.next().map(cursor -> moreUrl(zone.zone(), childFolder, cursor)),
+					Optional.empty()), out);
+		}
+		// the response has been written already (returning null would make Spark treat the request as not found)
+		return "";
+	}
+
+	/** Writer to the (compressed, if supported) response body. Without a Content-Length, the servlet container sends
+	 * the body in chunks as it is flushed. */
+	private static Writer writer(Request req, Response res) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(HttpCompression.output(req, res), StandardCharsets.UTF_8));
+	}
+
+	/** Snapshots of the given entries, created as they are iterated over (so that they don't all need to be in
+	 * memory at once while rendering). */
+	private Iterable<DirectorySnapshot.ItemSnapshot> items(DirectorySnapshot snapshot,
+			List<DirectoryListing.Entry> entries) {
+		return () -> entries.stream()
+				.map(entry -> snapshot.getItem(entry, metadata.title(entry.item())))
+				.iterator();
+	}
+
+	/** URL of the HTML items following the given cursor in the given folder. */
+	private String moreUrl(Zone zone, File folder, String cursor) {
+		StringBuilder url = new StringBuilder(zone.prefix() + "/list/");
+		for (String segment : mapping.fileToPath(folder).split("/")) {
+			if (!segment.isEmpty()) {
+				url.append(encode(segment)).append('/');
+			}
+		}
+		return url.append("?format=html&cursor=").append(encode(cursor)).toString();
+	}
 
-		DirectorySnapshot directorySnapshot = controller.getStore().getSnapshot(childFolder);
-		return page.render(new DirectoryPage.Data(
-				directorySnapshot,
-				childFolder,
-				Stream.of(files)
-						.sorted(Comparator.comparing(file -> file.getName().toLowerCase()))
-						.map(file -> directorySnapshot.getItem(file))
-						.toList(),
-				controller.getStore().getGlobalState())).toString();
+	private static String encode(String text) {
+		return URLEncoder.encode(text, StandardCharsets.UTF_8).replace("+", "%20");
 	}
 
 	private String notFound(Response res, String error) {
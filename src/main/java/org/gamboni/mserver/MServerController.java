@@ -4,30 +4,57 @@
 package org.gamboni.mserver;
 
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
 import lombok.Getter;
 import org.gamboni.mserver.data.GlobalState;
 import org.gamboni.mserver.data.Item;
 import org.gamboni.mserver.data.PausedGlobalState;
 import org.gamboni.mserver.data.PlayState;
 import org.gamboni.mserver.data.PlayingGlobalState;
+import org.gamboni.mserver.data.PositionUpdates;
+import org.gamboni.mserver.data.QueueFiles;
+import org.gamboni.mserver.data.QueueFolder;
+import org.gamboni.mserver.data.QueueMove;
+import org.gamboni.mserver.data.QueueRange;
+import org.gamboni.mserver.data.StoppedGlobalState;
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.library.MetadataCache;
+import org.gamboni.mserver.library.ShuffleBag;
 import org.gamboni.mserver.tech.AbstractController;
+import org.gamboni.mserver.tech.ClientOutboxes;
 import org.gamboni.mserver.tech.Mapping;
 import org.gamboni.mserver.tech.media.MediaPlayer;
 import org.gamboni.mserver.tech.media.MpvMediaPlayer;
+import org.gamboni.mserver.tech.media.PositionCoalescer;
 import org.gamboni.mserver.ui.DirectoryPage;
 import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.event.Event;
 import org.gamboni.tech.web.js.JavaScript.JsExpression;
+import org.gamboni.tech.web.ws.BroadcastTarget;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.gamboni.tech.web.js.JavaScript.literal;
@@ -50,11 +77,33 @@ public class MServerController extends AbstractController {
 	 * are never blocking, they are just added to the end of the event queue.
 	 * (The event queue (which should be processed as fast as the CPU permits)
 	 * should not be confused with the play queue.)
+	 * There is one controller per zone, each with its own media player, queue and event
+	 * queue, so zones run independently of each other.
 	 */
 
+	/** Position updates from the media player are ignored unless they differ from the expected position by more than this. */
+	private static final Duration POSITION_DRIFT_THRESHOLD = Duration.ofMillis(
+			Long.getLong("mserver.positionDriftMillis", 500));
+
+	/** If true, playback of the file that was playing when the server stopped resumes on startup. */
+	private static final boolean RESUME_PLAYBACK = Boolean.getBoolean("mserver.resumePlayback");
+	/** How often the playback position is saved (so that playback can resume close to where it was). */
+	private static final long POSITION_SAVE_SECONDS = Long.getLong("mserver.positionSaveSeconds", 10);
+	private static final ScheduledExecutorService POSITION_SAVER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "position-save");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Getter
+	private final Zone zone;
 	final File root;
+	private final DirectoryListingCache listings;
+	private final MetadataCache metadata;
 	private final MServerSocket socketHandler;
 	private final MediaPlayer mediaPlayer;
+	/** Filters the media player's updates, and counts how many of them are redundant. */
+	private final PositionCoalescer positionUpdates;
 
 	private final Executor executor = new ThreadPoolExecutor(
 			1,
@@ -65,16 +114,27 @@ public class MServerController extends AbstractController {
 
 	@Getter
 	private final MServerHistoryStore store;
+	private final ClientOutboxes outboxes;
 
-	private final List<Item> queue = new ArrayList<>();
+	private final PlayQueue queue = new PlayQueue(this::ancestors);
+	/** Saves the queue, shuffle mode and current file, which must be reported every time they change. */
+	private final QueueJournal journal;
+	/** Position to jump to once playback starts, when resuming playback after a restart. */
+	private Optional<Double> resumePosition = Optional.empty();
 
 	/**
-	 * If present, contains the folder from which to get a random next item to auto-play.
+	 * If present, draws random next items to auto-play from the folder being shuffled.
 	 */
-	private Optional<File> shuffleFolder = Optional.empty();
+	private Optional<ShuffleBag> shuffleBag = Optional.empty();
 
 	private final ServiceProxy play;
 	private final ServiceProxy shuffle;
+	private final ServiceProxy queueFiles;
+	private final ServiceProxy queueFolder;
+	private final ServiceProxy moveQueued;
+	private final ServiceProxy unqueue;
+	private final CallbackServiceProxy getQueue;
+	private final CallbackServiceProxy getPositionUpdates;
 
 	public final JsExpression pause = service("pause", () -> {
 		pause();
@@ -88,44 +148,50 @@ public class MServerController extends AbstractController {
 		return "ok";
 	});
 
-	public MServerController(Mapping mapping, MServerSocket socketHandler, File folder, List<String> extraPlayerArgs) {
-		super(mapping);
-		this.mediaPlayer = new MpvMediaPlayer(mapping, extraPlayerArgs);
-		this.store = new MServerHistoryStore(mapping);
+	public MServerController(Mapping mapping, MServerSocket socketHandler, Zone zone, File folder,
+							 DirectoryListingCache listings, MetadataCache metadata) {
+		super(mapping, zone.prefix());
+		this.zone = zone;
+		this.mediaPlayer = new MpvMediaPlayer(mapping, zone.playerSocket(), zone.playerArgs());
+		this.store = new MServerHistoryStore(mapping, listings,
+				new HistoryLog(MServer.DATA_DIR.resolve(dataFileName("history") + ".log")));
+		this.outboxes = new ClientOutboxes(mapping, store::resync);
+		store.onDisconnect(outboxes::remove);
 		this.socketHandler = socketHandler;
 		this.root = folder;
-		mediaPlayer.setChangeListener(new MediaPlayer.ChangeListener() {
+		this.listings = listings;
+		this.metadata = metadata;
+		this.journal = new QueueJournal(mapping, MServer.DATA_DIR, dataFileName("queue"));
+		this.positionUpdates = new PositionCoalescer(new MediaPlayer.ChangeListener() {
 			@Override
 			public void stopped() {
 				// TODO it's easy to forget the executor.execute. Should somehow expose sensitive variables/methods only to executable tasks
 				// this could be done by wrapping them together with the executor.
 				executor.execute(() -> {
 					if (!queue.isEmpty()) {
-						Item item = queue.remove(0);
-						playNow(item,
-								() -> {
-							// oops: apparently the player started playing something already:
-							// let's put the file back into the queue
-							queue.add(0, item);
-						});
+						playFromQueue();
 					} else {
 						shuffleOne().ifPresentOrElse(file ->
 								mediaPlayer.playIfIdle(file,
-										() -> {},
+										() -> journal.playing(file),
 										() -> {
 											// ignore: if player is already playing something
 											// we don't need to add shuffled items
-										}), () ->
-								// nothing to shuffle: let's publish the "STOPPED" event downstream
-								updateStore(s -> {
-									s.setGlobalState(GlobalState.STOPPED);
-									Optional<File> playingBefore = s.getNowPlaying();
-									s.clearNowPlaying();
-									// see if we need to remove "playing" status of oldState
-									playingBefore.ifPresent(toRemove ->
-											s.setFileState(ancestors(toRemove),
-													pointer -> isQueued(pointer) ? PlayState.QUEUED : PlayState.STOPPED));
-								}));
+										}), () -> {
+							// in case mpv moved on to a file that was removed from the queue in the meantime
+							mediaPlayer.stop();
+							journal.stopped();
+							// nothing to shuffle: let's publish the "STOPPED" event downstream
+							updateStore(s -> {
+								s.setGlobalState(GlobalState.STOPPED);
+								Optional<File> playingBefore = s.getNowPlaying();
+								s.clearNowPlaying();
+								// see if we need to remove "playing" status of oldState
+								playingBefore.ifPresent(toRemove ->
+										s.setFileState(ancestors(toRemove),
+												pointer -> queue.contains(pointer) ? PlayState.QUEUED : PlayState.STOPPED));
+							});
+						});
 					}
 				});
 			}
@@ -136,20 +202,25 @@ public class MServerController extends AbstractController {
 					updateStore(s -> s.setGlobalState(new PlayingGlobalState(
 							started,
 							duration)));
+					resumePosition.ifPresent(mediaPlayer::seek);
+					resumePosition = Optional.empty();
 				});
 			}
 
 			@Override
 			public void paused(double position) {
-				updateStore(s -> {
-					if (s.getGlobalState() instanceof PlayingGlobalState gs) {
-						s.setGlobalState(
-								new PausedGlobalState(position, gs.duration()));
-					}
+				executor.execute(() -> {
+					updateStore(s -> {
+						if (s.getGlobalState() instanceof PlayingGlobalState gs) {
+							s.setGlobalState(
+									new PausedGlobalState(position, gs.duration()));
+						}
+					});
 				});
 			}
-		});
-		socketHandler.setController(this);
+		}, POSITION_DRIFT_THRESHOLD);
+		mediaPlayer.setChangeListener(positionUpdates);
+		socketHandler.addController(zone.name(), this);
 
 		this.play = service("play", fileName -> {
 			executor.execute(() -> {
@@ -157,12 +228,11 @@ public class MServerController extends AbstractController {
 
 				playNow(item, () -> {
 					queue.add(item);
-					System.out.println("Queued " + item);
+					journal.added(item.file);
+					syncNext();
+					System.out.println("Queued " + metadata.title(item));
 					updateStore(session -> {
-						session.setFileState(ancestors(item.file),
-								pointer -> store.isNowPlaying(pointer) ?
-										DirectoryPage.PLAY_STATE_FUNCTION.apply(
-												store.getGlobalState().getClass()) : PlayState.QUEUED);
+						session.setFileState(ancestors(item.file), this::stateOf);
 					});
 				});
 			});
@@ -176,11 +246,15 @@ public class MServerController extends AbstractController {
 
 		this.shuffle = service("shuffle", folderName -> {
 			executor.execute(() -> {
-				if (shuffleFolder.isPresent()) {
-					shuffleFolder = Optional.empty();
+				if (shuffleBag.isPresent()) {
+					shuffleBag.get().close();
+					shuffleBag = Optional.empty();
+					journal.shuffleStopped();
 					stop();
 				} else {
-					this.shuffleFolder = Optional.of(mapping.pathToFile(folderName));
+					File shuffleFolder = mapping.pathToFile(folderName);
+					this.shuffleBag = Optional.of(new ShuffleBag(shuffleFolder, listings));
+					journal.shuffling(shuffleFolder);
 					shuffleOne().ifPresent(f -> {
 						playNow(new Item(f),
 								() -> stop());
@@ -189,6 +263,95 @@ public class MServerController extends AbstractController {
 			});
 			return "ok";
 		});
+
+		/* Bulk edits of the queue: each of them sends clients a single batch of changes */
+
+		this.queueFiles = service("queueFiles", body -> {
+			var request = mapping.readValue(body, QueueFiles.class);
+			executor.execute(() -> enqueue(request.files(), request.position()));
+			return "ok";
+		});
+
+		this.queueFolder = service("queueFolder", body -> {
+			var request = mapping.readValue(body, QueueFolder.class);
+			// listing the folder may take a while: don't hold up the event queue
+			var files = musicFiles(request.folder(), request.recursive());
+			executor.execute(() -> enqueue(files, request.position()));
+			return "ok";
+		});
+
+		this.moveQueued = service("moveQueued", body -> {
+			var request = mapping.readValue(body, QueueMove.class);
+			executor.execute(() -> moveInQueue(request.from(), request.count(), request.to()));
+			return "ok";
+		});
+
+		this.unqueue = service("unqueue", body -> {
+			var request = mapping.readValue(body, QueueRange.class);
+			executor.execute(() -> removeFromQueue(request.from(), request.count()));
+			return "ok";
+		});
+
+		this.getQueue = getService("queue", () ->
+				CompletableFuture.supplyAsync(() -> queue.items()
+								.stream()
+								.map(item -> item.file)
+								.toList(),
+						executor).join());
+
+		this.getPositionUpdates = getService("positionUpdates", () ->
+				new PositionUpdates(positionUpdates.getForwarded(), positionUpdates.getDropped()));
+
+		recover();
+		POSITION_SAVER.scheduleWithFixedDelay(() -> executor.execute(this::savePosition),
+				POSITION_SAVE_SECONDS, POSITION_SAVE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/** Name of a file holding data of this zone, without extension. */
+	private String dataFileName(String base) {
+		return zone.name().isEmpty() ? base : base + "-" + zone.name();
+	}
+
+	/** Restore the queue and shuffle mode saved before the last shutdown, and resume playback if so configured. */
+	private void recover() {
+		var saved = journal.recover();
+		executor.execute(() -> {
+			saved.shuffle().ifPresent(folder ->
+					this.shuffleBag = Optional.of(new ShuffleBag(folder, listings)));
+			for (var file : saved.queue()) {
+				queue.add(new Item(file));
+			}
+			updateStore(session -> {
+				for (var item : queue) {
+					session.setFileState(ancestors(item.file), PlayState.QUEUED);
+				}
+			});
+			syncNext();
+			if (RESUME_PLAYBACK && saved.playing().isPresent()) {
+				if (saved.position() > 0) {
+					resumePosition = Optional.of(saved.position());
+				}
+				playNow(new Item(saved.playing().get()), () -> {});
+			} else if (saved.playing().isPresent()) {
+				journal.stopped();
+			}
+		});
+	}
+
+	private void savePosition() {
+		positionSeconds(store.getGlobalState(), Instant.now()).ifPresent(journal::position);
+	}
+
+	/** Position in the file being played, in seconds as expected by the journal, if something is playing. Global
+	 * state positions are in milliseconds, like the media player's. */
+	static OptionalDouble positionSeconds(GlobalState state, Instant now) {
+		if (state instanceof PlayingGlobalState playing) {
+			return OptionalDouble.of(Duration.between(playing.started(), now).toMillis() / 1000.0);
+		} else if (state instanceof PausedGlobalState paused) {
+			return OptionalDouble.of(paused.position() / 1000.0);
+		} else {
+			return OptionalDouble.empty();
+		}
 	}
 
 	private void pause() {
@@ -198,56 +361,153 @@ public class MServerController extends AbstractController {
 	private void stop() {
 		executor.execute(() -> {
 			// stop shuffling, ...
-			this.shuffleFolder = Optional.empty();
+			shuffleBag.ifPresent(ShuffleBag::close);
+			this.shuffleBag = Optional.empty();
+			journal.shuffleStopped();
 
 			// ... clear the queue, ...
-			updateStore(session -> {
-				var iterator = queue.iterator();
-				while (iterator.hasNext()) {
-					var item = iterator.next();
-					session.setFileState(ancestors(item.file), PlayState.STOPPED);
-					iterator.remove();
-				}
-			});
+			updateStore(session -> session.setFileState(ancestors(queue.clear()), PlayState.STOPPED));
+			journal.cleared();
+			syncNext();
 
 			// ... and end the current song
 			mediaPlayer.stop();
 		});
 	}
 
-	private Optional<File> shuffleOne() {
-		return shuffleFolder.flatMap(f -> {
-			File[] files = f.listFiles(file -> new Item(file).isMusic());
-			if (files == null || files.length == 0) {
-				return Optional.empty();
-			} else {
-				return Optional.of(files[(int) (Math.random() * files.length)]);
+	/** Insert files into the queue (at the end if {@code position} is null), and start playing if stopped. */
+	private void enqueue(List<File> files, Integer position) {
+		if (files.isEmpty()) {
+			return;
+		}
+		int index = (position == null) ? queue.size() : clamp(position, queue.size());
+		var items = files.stream()
+				.map(Item::new)
+				.toList();
+		queue.insert(index, items);
+		for (int i = 0; i < items.size(); i++) {
+			journal.inserted(index + i, items.get(i).file);
+		}
+		syncNext();
+		updateStore(session -> session.setFileState(ancestors(items), this::stateOf));
+		if (store.getGlobalState() instanceof StoppedGlobalState) {
+			playFromQueue();
+		}
+	}
+
+	/** Move items of the queue. Out of range positions are brought back in range. */
+	private void moveInQueue(int from, int count, int to) {
+		int start = clamp(from, queue.size());
+		int length = clamp(count, queue.size() - start);
+		int target = clamp(to, queue.size() - length);
+		if (length == 0 || start == target) {
+			return;
+		}
+		var moved = queue.move(start, length, target);
+		journal.removed(start, length);
+		for (int i = 0; i < length; i++) {
+			journal.inserted(target + i, moved.get(i).file);
+		}
+		// items remain queued, so only the next one may have changed
+		syncNext();
+	}
+
+	/** Remove items from the queue. Out of range positions are brought back in range. */
+	private void removeFromQueue(int from, int count) {
+		int start = clamp(from, queue.size());
+		var removed = queue.remove(start, clamp(count, queue.size() - start));
+		if (removed.isEmpty()) {
+			return;
+		}
+		journal.removed(start, removed.size());
+		syncNext();
+		updateStore(session -> session.setFileState(ancestors(removed), this::stateOf));
+	}
+
+	private static int clamp(int value, int max) {
+		return Math.max(0, Math.min(value, max));
+	}
+
+	/** Music files of the given folder, in the order they are listed, followed by those of its subfolders if so
+	 * requested. */
+	private List<File> musicFiles(File folder, boolean recursive) {
+		List<File> found = new ArrayList<>();
+		collectMusic(folder, recursive, new HashSet<>(), found);
+		return found;
+	}
+
+	private void collectMusic(File directory, boolean recursive, Set<Path> visited, List<File> found) {
+		try {
+			// protect against symbolic link loops
+			if (!visited.add(directory.toPath().toRealPath())) {
+				return;
 			}
+		} catch (IOException e) {
+			return;
+		}
+		listings.get(directory).ifPresent(listing -> {
+			for (var entry : listing.entries()) {
+				if (entry.item().isDirectory()) {
+					if (recursive) {
+						collectMusic(entry.item().file, true, visited, found);
+					}
+				} else if (entry.item().isMusic()) {
+					found.add(entry.item().file);
+				}
+			}
+		});
+	}
+
+	/** Play the next item of the queue, unless the player is busy (in which case it stays in the queue). */
+	private void playFromQueue() {
+		Item item = queue.poll();
+		journal.removedFirst();
+		playNow(item,
+				() -> {
+			// oops: apparently the player started playing something already:
+			// let's put the file back into the queue
+			queue.putBack(item);
+			journal.putBack(item.file);
 		});
+		syncNext();
 	}
 
-	private void playNow(Item item, Runnable queue) {
+	/** State to display for a file or directory, given what is playing and queued. */
+	private PlayState stateOf(File pointer) {
+		if (store.isNowPlaying(pointer)) {
+			return DirectoryPage.PLAY_STATE_FUNCTION.apply(store.getGlobalState().getClass());
+		} else {
+			return queue.contains(pointer) ? PlayState.QUEUED : PlayState.STOPPED;
+		}
+	}
+
+	private Optional<File> shuffleOne() {
+		return shuffleBag.flatMap(ShuffleBag::next);
+	}
+
+	private void playNow(Item item, Runnable otherwise) {
 		mediaPlayer.playIfIdle(item.file, () -> {
 			updateStore(s -> {
 				Optional<File> playingBefore = s.getNowPlaying();
 				s.setNowPlaying(item.file);
+				journal.playing(item.file);
 
 				// see if we need to remove "playing" status of oldState
 				playingBefore.ifPresent(toRemove ->
 						s.setFileState(ancestors(toRemove),
-								pointer -> isQueued(pointer) ? PlayState.QUEUED : PlayState.STOPPED));
+								pointer -> queue.contains(pointer) ? PlayState.QUEUED : PlayState.STOPPED));
 				s.setFileState(ancestors(item.file), PlayState.PLAYING);
 
-				s.setGlobalState(new PlayingGlobalState(Instant.now(), 0));
+				// duration is known in advance if the file was already probed, otherwise it comes from the player.
+				// Like the player's, global state durations are in milliseconds
+				s.setGlobalState(new PlayingGlobalState(Instant.now(), metadata.duration(item.file) * 1000));
 			});
-		}, queue);
+		}, otherwise);
 	}
 
-	/**
-	 * True if {@code path} is either the name of an item in queue, or one of its parent directories.
-	 */
-	private boolean isQueued(File path) {
-		return queue.stream().anyMatch(item -> item.isAt(path));
+	/** Let the media player know what comes next in the queue, so it can prepare it in advance. */
+	private void syncNext() {
+		mediaPlayer.setNext(queue.first().map(item -> item.file));
 	}
 
 	/**
@@ -269,8 +529,35 @@ public class MServerController extends AbstractController {
 		};
 	}
 
+	/** Ancestors of the given items (included), each of them once even if they contain several items. */
+	private Set<File> ancestors(Collection<Item> items) {
+		Set<File> result = new LinkedHashSet<>();
+		for (var item : items) {
+			Iterables.addAll(result, ancestors(item.file));
+		}
+		return result;
+	}
+
 	private void updateStore(Consumer<MServerHistoryStore.UpdateSession> work) {
-		broadcastState(store.update(work));
+		var session = new AtomicReference<MServerHistoryStore.UpdateSession>();
+		var notifications = store.update(s -> {
+			session.set(s);
+			work.accept(s);
+		});
+		broadcastState(notifications, session.get()::keyOf);
+	}
+
+	/** Register a client displaying files of the given directories (usually the one it is browsing, or those of search
+	 * results), and send it the changes it missed.
+	 *
+	 * <p>The client is registered right away with the store's {@link MServerHistoryStore#addListener addListener}, so
+	 * that it is removed when it disconnects. Its catch-up is computed on the event queue and goes through its outbox
+	 * like any other event, so that it reaches the client in order with broadcasts.</p>
+	 */
+	public void addListener(BroadcastTarget client, File directory, List<File> directories, long stamp) {
+		// the catch-up sent below supersedes the one returned here
+		store.addListener(client, directory, stamp);
+		executor.execute(() -> outboxes.sendAll(client, store.setDirectories(client, directories, stamp)));
 	}
 
 	/** Return JavaScript code to play the given file. */
@@ -279,9 +566,12 @@ public class MServerController extends AbstractController {
 	}
 
 
-	public void broadcastState(HistoryStore<?, ?, ?>.PerClientUpdates notifications) {
-		if (notifications.hasEvents()) {
-			socketHandler.broadcast(notifications::get);
-		}
+	/** Queue the given notifications for sending. This never waits for clients, which are sent their events in the
+	 * background.
+	 *
+	 * @param keys what each event is about, so that events superseding each other are only sent once.
+	 */
+	public void broadcastState(HistoryStore<?, ?, ?>.PerClientUpdates notifications, Function<Event, Object> keys) {
+		outboxes.broadcast(notifications, store.getClients(), keys);
 	}
 }
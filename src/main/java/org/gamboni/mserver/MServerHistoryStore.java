@@ -1,11 +1,12 @@
 package org.gamboni.mserver;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import org.gamboni.mserver.data.DirectoryState;
 import org.gamboni.mserver.data.GlobalState;
 import org.gamboni.mserver.data.PlayState;
 import org.gamboni.mserver.data.PlayingGlobalState;
+import org.gamboni.mserver.library.DirectoryListing;
+import org.gamboni.mserver.library.DirectoryListingCache;
 import org.gamboni.mserver.tech.Mapping;
 import org.gamboni.tech.history.InMemoryHistoryStore;
 import org.gamboni.tech.history.event.Event;
@@ -14,61 +15,214 @@ import org.gamboni.tech.web.ws.BroadcastTarget;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static java.util.stream.Collectors.toSet;
 
-@RequiredArgsConstructor
+/** Play state of the files of a zone.
+ *
+ * <p>Changes are recorded in a {@link HistoryLog}, so that stamps keep increasing across restarts, and clients can
+ * catch up with changes that are no longer held in memory (in particular, those made before a restart).</p>
+ */
 public class MServerHistoryStore extends InMemoryHistoryStore<
         File,
         DirectorySnapshot,
         MServerHistoryStore.UpdateSession> {
 
     private final Mapping mapping;
-    private final Map<File, DirectoryState> directoryStates = new HashMap<>();
-    private final Map<BroadcastTarget, DirectoryState> listeners = new HashMap<>();
+    private final DirectoryListingCache listings;
+    private final HistoryLog log;
+    /** Added to the stamps of update sessions, so that they are greater than those of the previous run. */
+    private final long base;
+    private final Map<File, DirectoryState> directoryStates = new ConcurrentHashMap<>();
+    /** Connected clients, and the directories whose files each of them displays (usually, the one it is browsing).
+     * Concurrent so that global events can be sent to all clients by iterating over its keys, without copying them.
+     * Registrations and removals synchronize on it, so that directory states always have the same clients. */
+    private final Map<BroadcastTarget, List<DirectoryState>> listeners = new ConcurrentHashMap<>();
+    /** Called with each client that disconnected. */
+    private final List<Consumer<BroadcastTarget>> disconnectListeners = new CopyOnWriteArrayList<>();
 
-    private Optional<File> nowPlaying = Optional.empty();
+    private volatile Optional<File> nowPlaying = Optional.empty();
     @Getter
     private volatile GlobalState globalState = GlobalState.STOPPED;
 
-    private synchronized DirectoryState directoryState(File path) {
-        return directoryStates.computeIfAbsent(path, __ -> new DirectoryState(this.mapping));
+    public MServerHistoryStore(Mapping mapping, DirectoryListingCache listings, HistoryLog log) {
+        this.mapping = mapping;
+        this.listings = listings;
+        this.log = log;
+        var recovered = log.recover();
+        this.base = log.getLastStamp() + 1;
+        // nothing is playing or queued any more: let clients from before the restart know about it
+        update(session -> session.setFileState(recovered.keySet()
+                .stream()
+                .map(mapping::pathToFile)
+                .toList(), PlayState.STOPPED));
+    }
+
+    /* Reads don't lock the store: directory states publish immutable snapshots, so that rendering pages and greeting
+     * clients never wait for updates. */
+
+    DirectoryState directoryState(File path) {
+        return directoryStates.computeIfAbsent(path, __ -> new DirectoryState(this.mapping, path, base - 1));
     }
 
     @Override
-    public synchronized DirectorySnapshot getSnapshot(File path) {
-        return new DirectorySnapshot(getStamp(), directoryState(path).getSnapshot());
+    public DirectorySnapshot getSnapshot(File path) {
+        var version = directoryState(path).getSnapshot();
+        return new DirectorySnapshot(catchUpStamp(version), version.states());
+    }
+
+    /** Snapshot of the state of the given files, which may be in different directories. */
+    public DirectorySnapshot getSnapshot(Collection<File> files) {
+        Map<File, PlayState> states = new HashMap<>();
+        long stamp = Long.MAX_VALUE;
+        for (var directory : files.stream().map(File::getParentFile).collect(toSet())) {
+            var version = directoryState(directory).getSnapshot();
+            states.putAll(version.states());
+            stamp = Math.min(stamp, catchUpStamp(version));
+        }
+        return new DirectorySnapshot((stamp == Long.MAX_VALUE) ? log.getLastStamp() : stamp, states);
+    }
+
+    /** Stamp from which a client holding the given version needs to catch up. Other files may still be changed with
+     * the stamp of the version (an update session changes files one at a time), so that stamp must be included. */
+    private static long catchUpStamp(DirectoryState.Version version) {
+        return Math.max(0, version.stamp() - 1);
     }
 
     @Override
-    public synchronized List<Event> internalAddListener(BroadcastTarget client, File path, long stamp) {
-        DirectoryState directoryState = directoryState(path);
-        directoryState.addListener(client);
-        listeners.put(client, directoryState);
-        List<Event> events = new ArrayList<>(directoryState.getUpdatesSince(stamp));
+    public List<Event> internalAddListener(BroadcastTarget client, File path, long stamp) {
+        List<DirectoryState> directoryStates = List.of(directoryState(path));
+        synchronized (listeners) {
+            register(client, directoryStates);
+        }
+        return updatesSince(directoryStates, stamp);
+    }
+
+    /** Change the directories whose files a client displays (for instance, to those of search results).
+     *
+     * <p>Clients must first be registered with {@link #addListener(BroadcastTarget, File, long)}, which also makes
+     * sure that {@link #removeListener} is called when they disconnect. Clients that are not registered (any more) are
+     * left alone, so that a client that disconnected in the meantime is not registered again.</p>
+     *
+     * @param stamp the stamp of the snapshot the client displays (see {@link #getSnapshot(Collection)}).
+     * @return the events bringing the client up to date, or nothing if it is not registered.
+     */
+    public List<Event> setDirectories(BroadcastTarget client, Collection<File> directories, long stamp) {
+        List<DirectoryState> directoryStates = directories.stream()
+                .distinct()
+                .map(this::directoryState)
+                .toList();
+        synchronized (listeners) {
+            if (!listeners.containsKey(client)) {
+                return List.of();
+            }
+            register(client, directoryStates);
+        }
+        return updatesSince(directoryStates, stamp);
+    }
+
+    /** Register a client, replacing any previous registration. Must be called while synchronized on listeners. */
+    private void register(BroadcastTarget client, List<DirectoryState> directoryStates) {
+        directoryStates.forEach(directoryState -> directoryState.addListener(client));
+        List<DirectoryState> previous = listeners.put(client, directoryStates);
+        if (previous != null) {
+            // the client moved to other directories
+            previous.stream()
+                    .filter(directoryState -> !directoryStates.contains(directoryState))
+                    .forEach(directoryState -> directoryState.removeListener(client));
+        }
+    }
+
+    private List<Event> updatesSince(List<DirectoryState> directoryStates, long stamp) {
+        List<Event> events = new ArrayList<>();
+        for (var directoryState : directoryStates) {
+            events.addAll(directoryState.getUpdatesSince(stamp)
+                    .or(() -> logUpdatesSince(directoryState, stamp))
+                    // the client is too far behind to catch up, so send it the state of everything it may display
+                    .orElseGet(() -> fullState(directoryState)));
+        }
         // Note: these could be conditional on 'stamp' as well, at least the first one…
         events.add(globalState);
         return events;
     }
 
+    /** Changes to the given directory since the given stamp, read from the log. */
+    private Optional<List<NewStateEvent<PlayState>>> logUpdatesSince(DirectoryState directoryState, long stamp) {
+        return log.changesSince(stamp, mapping.fileToPath(directoryState.getDirectory()))
+                .map(changes -> changes.entrySet()
+                        .stream()
+                        .map(change -> new NewStateEvent<>("", change.getKey(), change.getValue()))
+                        .toList());
+    }
+
+    /** Events bringing the given client up to date, whatever it received so far. */
+    public List<Event> resync(BroadcastTarget client) {
+        List<Event> events = new ArrayList<>();
+        for (var directoryState : listeners.getOrDefault(client, List.of())) {
+            events.addAll(fullState(directoryState));
+        }
+        events.add(globalState);
+        return events;
+    }
+
+    private List<NewStateEvent<PlayState>> fullState(DirectoryState directoryState) {
+        return directoryState.getStates(listings.get(directoryState.getDirectory())
+                .map(listing -> listing.entries()
+                        .stream()
+                        .filter(DirectoryListing.Entry::isBrowsable)
+                        .map(entry -> entry.item().file)
+                        .toList())
+                .orElse(List.of()));
+    }
+
+    /** Currently connected clients. */
+    public Set<BroadcastTarget> getClients() {
+        return Collections.unmodifiableSet(listeners.keySet());
+    }
+
+    /** Called when a client disconnects: forget it, and let disconnect listeners know. */
     @Override
     public void removeListener(BroadcastTarget broadcastTarget) {
-        listeners.get(broadcastTarget).removeListener(broadcastTarget);
+        List<DirectoryState> directoryStates;
+        synchronized (listeners) {
+            directoryStates = listeners.remove(broadcastTarget);
+            if (directoryStates != null) {
+                directoryStates.forEach(directoryState -> directoryState.removeListener(broadcastTarget));
+            }
+        }
+        if (directoryStates != null) {
+            disconnectListeners.forEach(listener -> listener.accept(broadcastTarget));
+        }
     }
 
-    public synchronized boolean isNowPlaying(File path) {
+    /** Run the given code with each client that disconnects, for instance to release resources held for it. */
+    public void onDisconnect(Consumer<BroadcastTarget> listener) {
+        disconnectListeners.add(listener);
+    }
+
+    public boolean isNowPlaying(File path) {
         return nowPlaying.map(playingPath -> playingPath
                 .getPath().startsWith(path.getPath()))
                 .orElse(false);
     }
 
     public class UpdateSession extends AbstractUpdateSession {
+        /** Events sent to clients in this session, mapped to what they are about (see {@link #keyOf}). */
+        private final Map<Event, Object> keys = new IdentityHashMap<>();
 
         private UpdateSession(long stamp) {
             super(stamp);
         }
 
+        /** What the given event (created by this session) is about: events with the same key supersede each other. */
+        public Object keyOf(Event event) {
+            return keys.getOrDefault(event, event);
+        }
+
         public void setNowPlaying(File file) {
             MServerHistoryStore.this.nowPlaying = Optional.of(file);
         }
@@ -85,18 +239,35 @@ public class MServerHistoryStore extends InMemoryHistoryStore<
                     (globalState instanceof PlayingGlobalState a &&
                             newState instanceof PlayingGlobalState b &&
                             a.duration() != b.duration())) {
-                clients().forEach(client -> notifications.put(client, newState));
+                keys.put(newState, GlobalState.class);
+                listeners.keySet().forEach(client -> notifications.put(client, newState));
             }
 
             MServerHistoryStore.this.globalState = newState;
         }
 
         public void setFileState(Iterable<File> files, Function<File, PlayState> stateFunction) {
+            long stamp = base + getStamp();
+            /* Changes are grouped by directory, so that each directory publishes a new version once rather than once
+             * per file (which would copy its state for each file). */
+            Map<File, Map<File, PlayState>> changes = new LinkedHashMap<>();
+            Map<File, NewStateEvent<PlayState>> events = new HashMap<>();
             for (var file : files) {
                 var state = stateFunction.apply(file);
-                NewStateEvent<PlayState> fileState = new NewStateEvent<>("", mapping.fileToPath(file), state);
-                for (var client : directoryState(file.getParentFile()).setFileState(file, getStamp(), state)) {
-                    notifications.put(client, fileState);
+                String path = mapping.fileToPath(file);
+                NewStateEvent<PlayState> fileState = new NewStateEvent<>("", path, state);
+                keys.put(fileState, file);
+                events.put(file, fileState);
+                // logged first, so that a client catching up from the log without being notified gets this change
+                log.append(stamp, path, state);
+                changes.computeIfAbsent(file.getParentFile(), __ -> new LinkedHashMap<>()).put(file, state);
+            }
+            for (var directory : changes.entrySet()) {
+                var clients = directoryState(directory.getKey()).setFileStates(directory.getValue(), stamp);
+                for (var file : directory.getValue().keySet()) {
+                    for (var client : clients) {
+                        notifications.put(client, events.get(file));
+                    }
                 }
             }
         }
@@ -114,14 +285,6 @@ public class MServerHistoryStore extends InMemoryHistoryStore<
         }
     }
 
-    private Set<BroadcastTarget> clients() {
-        return directoryStates.values()
-                .stream()
-                .map(DirectoryState::getClients)
-                .flatMap(Collection::stream)
-                .collect(toSet());
-    }
-
     @Override
     protected UpdateSession newTransaction(long stamp) {
         return new UpdateSession(stamp);
@@ -1,6 +1,5 @@
 package org.gamboni.mserver;
 
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 import org.gamboni.mserver.data.GetStatus;
@@ -8,12 +7,17 @@ import org.gamboni.mserver.tech.Mapping;
 import org.gamboni.tech.sparkjava.SparkWebSocket;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 @WebSocket
 @Slf4j
 public class MServerSocket extends SparkWebSocket {
 
-    @Setter
-    private MServerController controller;
+    /** Controller of each zone, by zone name. */
+    private final Map<String, MServerController> controllers = new ConcurrentHashMap<>();
+    private volatile MServerController defaultController;
 
     private final Mapping mapping;
 
@@ -25,13 +29,24 @@ public class MServerSocket extends SparkWebSocket {
         init();
     }
 
+    /** Register the controller of a zone. The first one is used for clients not specifying a zone. */
+    public void addController(String zone, MServerController controller) {
+        controllers.put(zone, controller);
+        if (defaultController == null) {
+            defaultController = controller;
+        }
+    }
+
     @Override
     protected boolean handleMessage(BroadcastTarget client, String message) {
         var getStatus = mapping.readValue(message, GetStatus.class);
-        var updates = controller.getStore()
-                .addListener(client, getStatus.directory(), getStatus.stamp());
-
-        client.sendOrLog(updates);
+        var controller = (getStatus.zone() == null) ?
+                defaultController :
+                controllers.getOrDefault(getStatus.zone(), defaultController);
+        // search pages display files of several directories
+        controller.addListener(client, getStatus.directory(),
+                (getStatus.directories() == null) ? List.of(getStatus.directory()) : getStatus.directories(),
+                getStatus.stamp());
 
         return true;
     }
@@ -0,0 +1,140 @@
+package org.gamboni.mserver;
+
+import org.gamboni.mserver.data.Item;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/** Items waiting to be played, indexed by the directories they are in.
+ *
+ * <p>Items are held in a circular buffer, so that adding or removing them at either end takes constant time. For
+ * each queued file and each of its ancestors, the queue maintains the number of queued items it contains, so that
+ * {@link #contains} takes constant time, and adding or removing an item takes time proportional to its depth.
+ * Editing the middle of the queue takes time proportional to its length.</p>
+ *
+ * <p>Not thread-safe: it is meant to be used from the controller's event queue.</p>
+ */
+public class PlayQueue implements Iterable<Item> {
+    private final Function<File, Iterable<File>> ancestors;
+    private final Deque<Item> items = new ArrayDeque<>();
+    /** Number of queued items at or under each file. Files without queued items are absent. */
+    private final Map<File, Integer> counts = new HashMap<>();
+
+    /**
+     * @param ancestors the file itself, and the ancestors whose count should be maintained.
+     */
+    public PlayQueue(Function<File, Iterable<File>> ancestors) {
+        this.ancestors = ancestors;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /** The item that will be played next, if any. */
+    public Optional<Item> first() {
+        return Optional.ofNullable(items.peekFirst());
+    }
+
+    public void add(Item item) {
+        items.addLast(item);
+        count(item, +1);
+    }
+
+    /** Put an item back at the head of the queue. */
+    public void putBack(Item item) {
+        items.addFirst(item);
+        count(item, +1);
+    }
+
+    /** Remove the item that will be played next.
+     *
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public Item poll() {
+        Item item = items.removeFirst();
+        count(item, -1);
+        return item;
+    }
+
+    /** Insert items before the given position. */
+    public void insert(int position, List<Item> added) {
+        edit(list -> list.addAll(position, added));
+        added.forEach(item -> count(item, +1));
+    }
+
+    /** Remove {@code count} items, starting at the given position.
+     *
+     * @return the removed items.
+     */
+    public List<Item> remove(int from, int count) {
+        List<Item> removed = new ArrayList<>(count);
+        edit(list -> {
+            var range = list.subList(from, from + count);
+            removed.addAll(range);
+            range.clear();
+        });
+        removed.forEach(item -> count(item, -1));
+        return removed;
+    }
+
+    /** Move {@code count} items, starting at {@code from}, so that they start at {@code to} once moved.
+     *
+     * @return the moved items.
+     */
+    public List<Item> move(int from, int count, int to) {
+        List<Item> moved = new ArrayList<>(count);
+        edit(list -> {
+            var range = list.subList(from, from + count);
+            moved.addAll(range);
+            range.clear();
+            list.addAll(to, moved);
+        });
+        return moved;
+    }
+
+    private void edit(Consumer<List<Item>> change) {
+        List<Item> list = new ArrayList<>(items);
+        change.accept(list);
+        items.clear();
+        items.addAll(list);
+    }
+
+    /** Remove all items.
+     *
+     * @return the removed items.
+     */
+    public List<Item> clear() {
+        List<Item> removed = List.copyOf(items);
+        items.clear();
+        counts.clear();
+        return removed;
+    }
+
+    /** The queued items, in order. */
+    public List<Item> items() {
+        return List.copyOf(items);
+    }
+
+    /** True if {@code path} is a queued file, or an ancestor of one. */
+    public boolean contains(File path) {
+        return counts.containsKey(path);
+    }
+
+    private void count(Item item, int delta) {
+        for (File file : ancestors.apply(item.file)) {
+            counts.merge(file, delta, (count, d) -> (count + d == 0) ? null : count + d);
+        }
+    }
+
+    @Override
+    public Iterator<Item> iterator() {
+        return Collections.unmodifiableCollection(items).iterator();
+    }
+}
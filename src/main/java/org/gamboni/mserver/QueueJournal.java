@@ -0,0 +1,373 @@
+package org.gamboni.mserver;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.tech.Mapping;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/** Keeps the play queue, shuffle mode and current track of a zone on disk, so that they survive a restart.
+ *
+ * <p>The controller reports each change as it makes it. Changes are appended to a journal by a background thread,
+ * which syncs the journal to disk once per batch of changes (so the controller never waits for the disk, and a burst
+ * of changes costs a single sync). Every {@link #SNAPSHOT_INTERVAL} changes, the whole state is written to a
+ * snapshot file and the journal starts over.</p>
+ *
+ * <p>Journal records are: length, CRC32 and payload (sequence number, operation and argument). On startup, records
+ * following the snapshot are replayed, up to the first incomplete or corrupt one (the tail of a write interrupted by a
+ * crash). The recovered state is then saved as a new snapshot, with an empty journal.</p>
+ */
+@Slf4j
+public class QueueJournal {
+    private static final int MAGIC = 0x4d53514a; // "MSQJ"
+    private static final int VERSION = 1;
+    private static final int SNAPSHOT_INTERVAL = 1000;
+
+    private static final byte ADD_LAST = 1;
+    private static final byte ADD_FIRST = 2;
+    private static final byte REMOVE_FIRST = 3;
+    private static final byte CLEAR = 4;
+    private static final byte SHUFFLE = 5;
+    private static final byte SHUFFLE_OFF = 6;
+    private static final byte PLAYING = 7;
+    private static final byte STOPPED = 8;
+    private static final byte POSITION = 9;
+    private static final byte INSERT = 10;
+    private static final byte REMOVE = 11;
+
+    /** A saved state.
+     *
+     * @param queue files in the play queue.
+     * @param shuffle the folder being shuffled, if any.
+     * @param playing the file being played, if any.
+     * @param position last known position in that file, in seconds.
+     */
+    public record State(List<File> queue, Optional<File> shuffle, Optional<File> playing, double position) {}
+
+    /**
+     * @param index where a file is inserted, or the first removed file.
+     * @param count number of removed files.
+     */
+    private record Change(byte operation, String path, double position, int index, int count) {
+        Change(byte operation, String path, double position) {
+            this(operation, path, position, 0, 0);
+        }
+    }
+
+    /** State resulting from applying changes in order. */
+    private static class Mirror {
+        long sequence = 0;
+        /* A list rather than a deque, as files may be inserted and removed anywhere */
+        final List<String> queue = new ArrayList<>();
+        String shuffle = null;
+        String playing = null;
+        double position = 0;
+
+        void apply(Change change) {
+            switch (change.operation()) {
+                case ADD_LAST -> queue.add(change.path());
+                case ADD_FIRST -> queue.add(0, change.path());
+                case REMOVE_FIRST -> {
+                    if (!queue.isEmpty()) {
+                        queue.remove(0);
+                    }
+                }
+                case INSERT -> queue.add(Math.min(change.index(), queue.size()), change.path());
+                case REMOVE -> {
+                    int from = Math.min(change.index(), queue.size());
+                    queue.subList(from, Math.min(from + change.count(), queue.size())).clear();
+                }
+                case CLEAR -> queue.clear();
+                case SHUFFLE -> shuffle = change.path();
+                case SHUFFLE_OFF -> shuffle = null;
+                case PLAYING -> {
+                    playing = change.path();
+                    position = 0;
+                }
+                case STOPPED -> {
+                    playing = null;
+                    position = 0;
+                }
+                case POSITION -> position = change.position();
+                default -> throw new IllegalArgumentException("Unknown operation " + change.operation());
+            }
+        }
+    }
+
+    private final Mapping mapping;
+    private final Path journalFile;
+    private final Path snapshotFile;
+    private final BlockingQueue<Change> pending = new LinkedBlockingQueue<>();
+    /** Only accessed by the writer thread (once recovery is complete). */
+    private final Mirror mirror = new Mirror();
+    private FileChannel journal;
+    private int sinceSnapshot = 0;
+    /** Last position reported, to skip redundant records. Only accessed by the controller. */
+    private double lastPosition = -1;
+
+    /**
+     * @param name distinguishes the files of this journal from those of other zones.
+     */
+    public QueueJournal(Mapping mapping, Path directory, String name) {
+        this.mapping = mapping;
+        this.journalFile = directory.resolve(name + ".journal");
+        this.snapshotFile = directory.resolve(name + ".snapshot");
+    }
+
+    /** Load the saved state, and start recording changes. Must be called once, before reporting any change. */
+    public State recover() {
+        long start = System.nanoTime();
+        readSnapshot();
+        int replayed = readJournal();
+        State state = new State(
+                mirror.queue.stream().map(mapping::pathToFile).toList(),
+                Optional.ofNullable(mirror.shuffle).map(mapping::pathToFile),
+                Optional.ofNullable(mirror.playing).map(mapping::pathToFile),
+                mirror.position);
+        try {
+            Files.createDirectories(journalFile.getParent());
+            // start over, so that new records don't follow a torn one
+            writeSnapshot();
+        } catch (IOException e) {
+            log.warn("Could not write {}, the play queue will not be saved", journalFile, e);
+            return state;
+        }
+        log.info("Recovered play queue of {} items from {} ({} changes replayed) in {}ms",
+                state.queue().size(), journalFile, replayed, (System.nanoTime() - start) / 1_000_000);
+
+        Thread writer = new Thread(this::writeLoop, "journal-" + journalFile.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+        return state;
+    }
+
+    public void added(File file) {
+        record(ADD_LAST, file);
+    }
+
+    /** A file was put back at the head of the queue. */
+    public void putBack(File file) {
+        record(ADD_FIRST, file);
+    }
+
+    public void removedFirst() {
+        record(REMOVE_FIRST, null);
+    }
+
+    /** A file was inserted at the given position of the queue. */
+    public void inserted(int index, File file) {
+        pending.add(new Change(INSERT, mapping.fileToPath(file), 0, index, 0));
+    }
+
+    /** Files were removed from the queue, starting at the given position. */
+    public void removed(int index, int count) {
+        pending.add(new Change(REMOVE, null, 0, index, count));
+    }
+
+    public void cleared() {
+        record(CLEAR, null);
+    }
+
+    public void shuffling(File folder) {
+        record(SHUFFLE, folder);
+    }
+
+    public void shuffleStopped() {
+        record(SHUFFLE_OFF, null);
+    }
+
+    public void playing(File file) {
+        lastPosition = 0;
+        record(PLAYING, file);
+    }
+
+    public void stopped() {
+        record(STOPPED, null);
+    }
+
+    /** Position in the file being played, in seconds. */
+    public void position(double position) {
+        if (position != lastPosition) {
+            lastPosition = position;
+            pending.add(new Change(POSITION, null, position));
+        }
+    }
+
+    private void record(byte operation, File file) {
+        pending.add(new Change(operation, (file == null) ? null : mapping.fileToPath(file), 0));
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                for (var change : batch) {
+                    mirror.sequence++;
+                    mirror.apply(change);
+                    append(change);
+                }
+                // group commit: a single sync for the whole batch
+                journal.force(false);
+                sinceSnapshot += batch.size();
+                if (sinceSnapshot >= SNAPSHOT_INTERVAL) {
+                    writeSnapshot();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not write to {}", journalFile, e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void append(Change change) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeLong(mirror.sequence);
+            out.writeByte(change.operation());
+            if (change.operation() == POSITION) {
+                out.writeDouble(change.position());
+            } else if (change.operation() == INSERT) {
+                out.writeInt(change.index());
+                out.writeUTF(change.path());
+            } else if (change.operation() == REMOVE) {
+                out.writeInt(change.index());
+                out.writeInt(change.count());
+            } else if (change.path() != null) {
+                out.writeUTF(change.path());
+            }
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .flip();
+        while (record.hasRemaining()) {
+            journal.write(record);
+        }
+    }
+
+    /** Save the mirrored state, and start a new journal. */
+    private void writeSnapshot() throws IOException {
+        Path temp = Files.createTempFile(snapshotFile.getParent(), "snapshot", ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mirror.sequence);
+            out.writeInt(mirror.queue.size());
+            for (String path : mirror.queue) {
+                out.writeUTF(path);
+            }
+            writeOptional(out, mirror.shuffle);
+            writeOptional(out, mirror.playing);
+            out.writeDouble(mirror.position);
+        }
+        try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // records up to the snapshot's sequence number are skipped on recovery, so a crash before this is harmless
+        if (journal != null) {
+            journal.close();
+        }
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        sinceSnapshot = 0;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private void readSnapshot() {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("Ignoring incompatible snapshot {}", snapshotFile);
+                return;
+            }
+            mirror.sequence = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                mirror.queue.add(in.readUTF());
+            }
+            mirror.shuffle = in.readBoolean() ? in.readUTF() : null;
+            mirror.playing = in.readBoolean() ? in.readUTF() : null;
+            mirror.position = in.readDouble();
+        } catch (IOException e) {
+            log.warn("Could not read {}, starting with an empty queue", snapshotFile, e);
+            mirror.sequence = 0;
+            mirror.queue.clear();
+            mirror.shuffle = null;
+            mirror.playing = null;
+            mirror.position = 0;
+        }
+    }
+
+    /** Replay the journal over the snapshot. */
+    private int readJournal() {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        int replayed = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 9 || length > 65536) {
+                    break;
+                }
+                byte[] payload = in.readNBytes(length);
+                CRC32 actual = new CRC32();
+                actual.update(payload);
+                if (payload.length != length || (int) actual.getValue() != crc) {
+                    break;
+                }
+                var record = new DataInputStream(new ByteArrayInputStream(payload));
+                long sequence = record.readLong();
+                byte operation = record.readByte();
+                Change change = switch (operation) {
+                    case POSITION -> new Change(operation, null, record.readDouble());
+                    case ADD_LAST, ADD_FIRST, SHUFFLE, PLAYING -> new Change(operation, record.readUTF(), 0);
+                    case INSERT -> {
+                        int index = record.readInt();
+                        yield new Change(operation, record.readUTF(), 0, index, 0);
+                    }
+                    case REMOVE -> new Change(operation, null, 0, record.readInt(), record.readInt());
+                    default -> new Change(operation, null, 0);
+                };
+                if (sequence > mirror.sequence) {
+                    mirror.sequence = sequence;
+                    mirror.apply(change);
+                    replayed++;
+                }
+            }
+        } catch (EOFException e) {
+            // end of the journal
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read {} entirely, ignoring the rest", journalFile, e);
+        }
+        return replayed;
+    }
+}
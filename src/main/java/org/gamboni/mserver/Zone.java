@@ -0,0 +1,44 @@
+package org.gamboni.mserver;
+
+import com.google.common.collect.ImmutableList;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/** An audio output, with its own media player, queue and play state.
+ *
+ * @param name name of the zone, empty if the server only drives the default output.
+ * @param playerSocket IPC socket of the zone's media player.
+ * @param playerArgs extra parameters for the zone's media player.
+ */
+public record Zone(String name, Path playerSocket, List<String> playerArgs) {
+    private static final String SOCKET = "/tmp/mserver";
+
+    /** The zone used when none is configured. */
+    public static Zone unnamed(List<String> playerArgs) {
+        return new Zone("", Path.of(SOCKET), ImmutableList.copyOf(playerArgs));
+    }
+
+    /** Parse a zone specification of the form {@code name[:player-arg[,player-arg...]]}.
+     *
+     * @param playerArgs extra player parameters common to all zones.
+     */
+    public static Zone parse(String spec, List<String> playerArgs) {
+        int colon = spec.indexOf(':');
+        String name = (colon == -1) ? spec : spec.substring(0, colon);
+        if (!name.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid zone name: " + name);
+        }
+        var args = ImmutableList.<String>builder().addAll(playerArgs);
+        if (colon != -1) {
+            args.addAll(Arrays.asList(spec.substring(colon + 1).split(",")));
+        }
+        return new Zone(name, Path.of(SOCKET + "-" + name), args.build());
+    }
+
+    /** Prepended to the URLs of pages and services of this zone. */
+    public String prefix() {
+        return name.isEmpty() ? "" : "/zones/" + name;
+    }
+}
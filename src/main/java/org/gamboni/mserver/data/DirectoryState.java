@@ -1,28 +1,71 @@
 package org.gamboni.mserver.data;
 
-import lombok.RequiredArgsConstructor;
+import com.google.common.collect.ImmutableMap;
+import lombok.Getter;
 import org.gamboni.mserver.tech.Mapping;
 import org.gamboni.tech.history.event.NewStateEvent;
 import org.gamboni.tech.web.ws.BroadcastTarget;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
-import static java.util.stream.Collectors.toMap;
-
-@RequiredArgsConstructor
+/** Play state of the files of a directory, and clients browsing it.
+ *
+ * <p>Files are also indexed by the stamp of their last change, so that catching up with changes since some stamp
+ * only needs to look at those changes. Files that went back to {@link PlayState#STOPPED} (the default state) are
+ * eventually forgotten: connected clients receive every change as it happens, so they don't need them any more.
+ * Clients reconnecting with a stamp older than the most recently forgotten change may have missed it, so they must
+ * catch up some other way.</p>
+ *
+ * <p>Changes are expected to come from one thread at a time. Each change publishes a new immutable {@link Version},
+ * so that snapshots are taken without locking or copying. Catching up takes a read lock, which only waits for
+ * changes to this directory.</p>
+ */
 public class DirectoryState {
+    /** Start forgetting stopped files when there are more than this many. */
+    private static final int MAX_STOPPED = 256;
 
     private final Mapping mapping;
-    private final Set<BroadcastTarget> listeners = new LinkedHashSet<>();
+    @Getter
+    private final File directory;
+    private final Set<BroadcastTarget> listeners = ConcurrentHashMap.newKeySet();
 
     public Set<BroadcastTarget> getClients() {
         return Collections.unmodifiableSet(listeners);
     }
 
+    /** State of the directory as of some change.
+     *
+     * @param stamp stamp of that change.
+     * @param states state of the files that are not {@link PlayState#STOPPED}.
+     */
+    public record Version(long stamp, Map<File, PlayState> states) {}
+
     private record StampedState(PlayState state, long stamp) {}
 
+    private volatile Version version;
+
+    private final StampedLock lock = new StampedLock();
+    /* The following fields are guarded by lock */
     private final Map<File, StampedState> fileState = new HashMap<>();
+    /** Files of {@link #fileState}, by the stamp of their last change. */
+    private final NavigableMap<Long, Set<File>> byStamp = new TreeMap<>();
+    private int stopped = 0;
+    /** Stamp of the most recent change that has been forgotten. */
+    private long horizon;
+
+    /**
+     * @param horizon stamp of the last change made before this object was created, which it knows nothing about.
+     */
+    public DirectoryState(Mapping mapping, File directory, long horizon) {
+        this.mapping = mapping;
+        this.directory = directory;
+        this.horizon = horizon;
+        // as if a change had just been made, so that snapshots are caught up from the horizon on
+        this.version = new Version(horizon + 1, ImmutableMap.of());
+    }
 
     /** Update the play-state of a file.
      *
@@ -32,10 +75,88 @@ public class DirectoryState {
      * @return the list of clients to notify of this change
      */
     public List<BroadcastTarget> setFileState(File file, long stamp, PlayState state) {
-        fileState.put(file, new StampedState(state, stamp));
+        return setFileStates(Map.of(file, state), stamp);
+    }
+
+    /** Update the play-state of several files of this directory at once, publishing a single new version.
+     *
+     * @param states the new state of each file
+     * @param stamp the epoch of all these changes
+     * @return the list of clients to notify of these changes
+     */
+    public List<BroadcastTarget> setFileStates(Map<File, PlayState> states, long stamp) {
+        long writeStamp = lock.writeLock();
+        try {
+            for (var change : states.entrySet()) {
+                File file = change.getKey();
+                PlayState state = change.getValue();
+                StampedState previous = fileState.put(file, new StampedState(state, stamp));
+                if (previous != null) {
+                    unindex(file, previous);
+                }
+                byStamp.computeIfAbsent(stamp, __ -> new HashSet<>()).add(file);
+                if (state == PlayState.STOPPED && ++stopped > MAX_STOPPED) {
+                    compact();
+                }
+            }
+        } finally {
+            lock.unlockWrite(writeStamp);
+        }
+        publish(states, stamp);
         return List.copyOf(listeners);
     }
 
+    /** Publish a new version with the given changes. This copies the current version once, so changes should be
+     * published together rather than one by one. */
+    private void publish(Map<File, PlayState> changes, long stamp) {
+        var states = ImmutableMap.<File, PlayState>builderWithExpectedSize(version.states().size() + changes.size());
+        version.states().forEach((file, state) -> {
+            if (!changes.containsKey(file)) {
+                states.put(file, state);
+            }
+        });
+        changes.forEach((file, state) -> {
+            if (state != PlayState.STOPPED) {
+                states.put(file, state);
+            }
+        });
+        this.version = new Version(stamp, states.build());
+    }
+
+    private void unindex(File file, StampedState state) {
+        Set<File> files = byStamp.get(state.stamp());
+        files.remove(file);
+        if (files.isEmpty()) {
+            byStamp.remove(state.stamp());
+        }
+        if (state.state() == PlayState.STOPPED) {
+            stopped--;
+        }
+    }
+
+    /** Forget the oldest half of the stopped files. */
+    private void compact() {
+        int toRemove = stopped / 2;
+        var stamps = byStamp.entrySet().iterator();
+        while (toRemove > 0 && stamps.hasNext()) {
+            var entry = stamps.next();
+            var files = entry.getValue().iterator();
+            while (files.hasNext()) {
+                File file = files.next();
+                if (fileState.get(file).state() == PlayState.STOPPED) {
+                    fileState.remove(file);
+                    files.remove();
+                    stopped--;
+                    toRemove--;
+                    horizon = entry.getKey();
+                }
+            }
+            if (entry.getValue().isEmpty()) {
+                stamps.remove();
+            }
+        }
+    }
+
     public void addListener(BroadcastTarget listener) {
         this.listeners.add(listener);
     }
@@ -44,19 +165,42 @@ public class DirectoryState {
         this.listeners.remove(listener);
     }
 
-    public Map<File, PlayState> getSnapshot() {
-        return fileState.entrySet().stream()
-                .collect(toMap(Map.Entry::getKey,
-                        e -> e.getValue().state()));
+    /** The current state of the directory. Files missing from it are {@link PlayState#STOPPED}. */
+    public Version getSnapshot() {
+        return version;
     }
 
-    public List<NewStateEvent<PlayState>> getUpdatesSince(long stamp) {
-        return fileState
-                .entrySet()
-                .stream()
-                .filter(e -> e.getValue().stamp > stamp)
-                .map(e -> new NewStateEvent<>("",
-                        mapping.fileToPath(e.getKey()), e.getValue().state()))
+    /** Changes that happened after the given stamp.
+     *
+     * @return the changes, or an empty Optional if some of them have been forgotten (in which case the client must
+     * catch up some other way, if need be by being sent the full state with {@link #getStates}).
+     */
+    public Optional<List<NewStateEvent<PlayState>>> getUpdatesSince(long stamp) {
+        long readStamp = lock.readLock();
+        try {
+            if (stamp < horizon) {
+                return Optional.empty();
+            }
+            return Optional.of(byStamp.tailMap(stamp, false)
+                    .values()
+                    .stream()
+                    .flatMap(Collection::stream)
+                    .map(file -> event(file, fileState.get(file).state()))
+                    .toList());
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    /** Current state of each of the given files (which should be all files of the directory). */
+    public List<NewStateEvent<PlayState>> getStates(Collection<File> files) {
+        var states = version.states();
+        return files.stream()
+                .map(file -> event(file, states.getOrDefault(file, PlayState.STOPPED)))
                 .toList();
     }
+
+    private NewStateEvent<PlayState> event(File file, PlayState state) {
+        return new NewStateEvent<>("", mapping.fileToPath(file), state);
+    }
 }
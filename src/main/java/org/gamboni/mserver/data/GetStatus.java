@@ -3,6 +3,7 @@ package org.gamboni.mserver.data;
 import org.gamboni.tech.web.js.JS;
 
 import java.io.File;
+import java.util.List;
 
 /** WebSocket payload requesting all state updates
  * for the given directory, starting from the given
@@ -10,7 +11,10 @@ import java.io.File;
  *
  * @param directory
  * @param stamp
+ * @param zone the zone whose state is requested (null for the default zone).
+ * @param directories if not null, the page shows files of these directories (for instance, search results), and
+ * updates are requested for all of them instead of {@code directory}.
  */
 @JS
-public record GetStatus(File directory, int stamp) {
+public record GetStatus(File directory, int stamp, String zone, List<File> directories) {
 }
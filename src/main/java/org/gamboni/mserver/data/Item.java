@@ -3,23 +3,50 @@
  */
 package org.gamboni.mserver.data;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
+import java.util.Locale;
 
 /**
  * @author tendays
  *
  */
 public class Item {
+	private static final ImmutableMap<String, String> MIME_TYPES = ImmutableMap.<String, String>builder()
+			.put("3gp", "video/3gpp")
+			.put("ogg", "audio/ogg")
+			.put("mp3", "audio/mpeg")
+			.put("mp4", "video/mp4")
+			.put("wma", "audio/x-ms-wma")
+			.put("mpeg", "video/mpeg")
+			.put("mpg", "video/mpeg")
+			.put("flac", "audio/flac")
+			.put("jpeg", "image/jpeg")
+			.put("jpg", "image/jpeg")
+			.put("png", "image/png")
+			.build();
+
+	private static final ImmutableSet<String> MUSIC_EXTENSIONS = ImmutableSet.of(
+			"3gp", "ogg", "mp3", "mp4", "wma", "mpeg", "mpg");
+
 	public final File file;
 	private final String ext;
 	public final String base;
 	public final String name;
+	/** Whether the file is a directory, or null if not known yet. */
+	private Boolean directory;
 
 	public Item(File file) {
+		this(file, null);
+	}
+
+	/** Construct an Item whose type is already known, so that {@link #isDirectory()} does not need to hit the disk. */
+	public Item(File file, Boolean directory) {
 		this.file = file;
-		
+		this.directory = directory;
+
 		this.name = file.getName();
 		int dot = name.lastIndexOf('.');
 		this.ext = name.substring(dot + 1);
@@ -31,7 +58,12 @@ public class Item {
 	}
 
 	public boolean isMusic() {
-		return ImmutableList.of("3gp", "ogg", "mp3", "mp4", "wma", "mpeg", "mpg").contains(ext);
+		return MUSIC_EXTENSIONS.contains(ext);
+	}
+
+	/** MIME type corresponding to this item's extension. */
+	public String mimeType() {
+		return MIME_TYPES.getOrDefault(ext.toLowerCase(Locale.ROOT), "application/octet-stream");
 	}
 
 	public String friendlyName() {
@@ -41,10 +73,9 @@ public class Item {
 	}
 
 	public boolean isDirectory() {
-		return file.isDirectory();
-	}
-
-	public boolean isAt(File path) {
-		return this.file.getPath().startsWith(path.getPath());
+		if (directory == null) {
+			directory = file.isDirectory();
+		}
+		return directory;
 	}
 }
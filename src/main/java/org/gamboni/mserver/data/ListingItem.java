@@ -0,0 +1,14 @@
+package org.gamboni.mserver.data;
+
+import java.io.File;
+
+/** An entry of a directory, as returned by the JSON listing service.
+ *
+ * @param file the file or directory.
+ * @param name its user-friendly name.
+ * @param directory whether it is a directory (otherwise, it can be played).
+ * @param hasArt whether a thumbnail is available (at the same path, plus {@code .jpeg}).
+ * @param state its current play state.
+ */
+public record ListingItem(File file, String name, boolean directory, boolean hasArt, PlayState state) {
+}
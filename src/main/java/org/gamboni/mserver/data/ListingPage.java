@@ -0,0 +1,12 @@
+package org.gamboni.mserver.data;
+
+import java.util.List;
+
+/** A part of a directory listing, as returned by the JSON listing service.
+ *
+ * @param stamp the stamp of the play states, to use when subscribing to updates.
+ * @param items entries of the directory, in display order.
+ * @param next cursor for getting the following entries, or null if there are none.
+ */
+public record ListingPage(long stamp, List<ListingItem> items, String next) {
+}
@@ -0,0 +1,9 @@
+package org.gamboni.mserver.data;
+
+/** Counters of the playback position updates received from the media player of a zone.
+ *
+ * @param forwarded updates that changed the play state, and were passed on to clients.
+ * @param dropped updates that were considered redundant, and ignored.
+ */
+public record PositionUpdates(long forwarded, long dropped) {
+}
@@ -0,0 +1,12 @@
+package org.gamboni.mserver.data;
+
+import java.io.File;
+import java.util.List;
+
+/** Request to add files to the play queue.
+ *
+ * @param files the files to add, in order.
+ * @param position where to insert them in the queue, or null to add them at the end.
+ */
+public record QueueFiles(List<File> files, Integer position) {
+}
@@ -0,0 +1,12 @@
+package org.gamboni.mserver.data;
+
+import java.io.File;
+
+/** Request to add the music files of a folder to the play queue, in the order they are listed.
+ *
+ * @param folder the folder.
+ * @param recursive whether to also add the files of its subfolders.
+ * @param position where to insert them in the queue, or null to add them at the end.
+ */
+public record QueueFolder(File folder, boolean recursive, Integer position) {
+}
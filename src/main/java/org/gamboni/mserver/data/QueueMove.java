@@ -0,0 +1,10 @@
+package org.gamboni.mserver.data;
+
+/** Request to move consecutive items of the play queue.
+ *
+ * @param from position of the first item to move (the item to be played next is at position 0).
+ * @param count number of items to move.
+ * @param to position of the first moved item, once moved.
+ */
+public record QueueMove(int from, int count, int to) {
+}
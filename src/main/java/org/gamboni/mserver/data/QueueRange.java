@@ -0,0 +1,9 @@
+package org.gamboni.mserver.data;
+
+/** Request to remove consecutive items from the play queue.
+ *
+ * @param from position of the first item to remove (the item to be played next is at position 0).
+ * @param count number of items to remove.
+ */
+public record QueueRange(int from, int count) {
+}
@@ -0,0 +1,12 @@
+package org.gamboni.mserver.data;
+
+import java.io.File;
+
+/** An item matching a search query, as returned by the JSON search service.
+ *
+ * @param file the matching file or directory.
+ * @param name its user-friendly name.
+ * @param directory whether it is a directory (otherwise, it can be played).
+ */
+public record SearchResult(File file, String name, boolean directory) {
+}
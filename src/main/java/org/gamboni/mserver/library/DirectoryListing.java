@@ -0,0 +1,100 @@
+package org.gamboni.mserver.library;
+
+import org.gamboni.mserver.data.Item;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/** The contents of a directory, sorted for display, with everything needed to render it precomputed so that
+ * rendering does not need to touch the file system.
+ *
+ * @param directory the directory that was listed.
+ * @param lastModified modification time of the directory when it was listed.
+ * @param entries the directory contents, sorted case-insensitively by name.
+ */
+public record DirectoryListing(File directory, long lastModified, List<Entry> entries) {
+
+    /** Order of entries in a listing: case-insensitive, then case-sensitive name order. */
+    public static final Comparator<Entry> ORDER = Comparator.comparing(Entry::sortKey)
+            .thenComparing(entry -> entry.item().name);
+
+    /** A part of the browsable entries of a listing.
+     *
+     * @param entries the entries in this part.
+     * @param next cursor to pass to {@link #slice} to get the following part, if any.
+     */
+    public record Slice(List<Entry> entries, Optional<String> next) {}
+
+    /** A file in a directory listing.
+     *
+     * @param item the file, whose type is already known.
+     * @param sortKey key used to order entries.
+     * @param hasArt whether there is a {@code .jpeg} file next to this one with the same name plus that extension.
+     * @param size file size in bytes (unspecified for directories).
+     * @param lastModified modification time of the file, in milliseconds since the epoch.
+     */
+    public record Entry(Item item, String sortKey, boolean hasArt, long size, long lastModified) {
+        /** True if this entry is shown when browsing (that is, if it is a directory or a music file). */
+        public boolean isBrowsable() {
+            return item.isDirectory() || item.isMusic();
+        }
+    }
+
+    /** Get some of the browsable entries of this listing.
+     *
+     * <p>Cursors are entry names, so that paging remains consistent if the directory changes between two calls:
+     * the next slice starts right after the position where the cursor entry is (or would be).</p>
+     *
+     * @param cursor if present, return entries following the one with that name (and ignore offset).
+     * @param offset number of browsable entries to skip, if there is no cursor.
+     * @param limit maximum number of entries to return.
+     */
+    public Slice slice(Optional<String> cursor, int offset, int limit) {
+        int index = cursor.map(this::indexAfter).orElse(0);
+        List<Entry> result = new ArrayList<>(Math.min(limit, entries.size()));
+        int skip = cursor.isPresent() ? 0 : offset;
+        while (index < entries.size() && result.size() < limit) {
+            Entry entry = entries.get(index++);
+            if (entry.isBrowsable() && skip-- <= 0) {
+                result.add(entry);
+            }
+        }
+        boolean more = entries.subList(index, entries.size()).stream().anyMatch(Entry::isBrowsable);
+        return new Slice(result, (more && !result.isEmpty()) ?
+                Optional.of(result.get(result.size() - 1).item().name) :
+                Optional.empty());
+    }
+
+    /** Get the entry with the given name, if any. */
+    public Optional<Entry> find(String name) {
+        int index = indexAfter(name);
+        if (index > 0 && entries.get(index - 1).item().name.equals(name)) {
+            return Optional.of(entries.get(index - 1));
+        }
+        return Optional.empty();
+    }
+
+    /** Index of the first entry that comes after an entry with the given name, in {@link #ORDER}. */
+    private int indexAfter(String name) {
+        String sortKey = name.toLowerCase(Locale.ROOT);
+        int low = 0, high = entries.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Entry entry = entries.get(middle);
+            int comparison = entry.sortKey().compareTo(sortKey);
+            if (comparison == 0) {
+                comparison = entry.item().name.compareTo(name);
+            }
+            if (comparison <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,225 @@
+package org.gamboni.mserver.library;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.Item;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Keeps sorted directory listings in memory so that browsing a directory does not require any file system access.
+ *
+ * <p>Listed directories are registered with a {@link WatchService} and their listing is dropped as soon as anything
+ * changes inside them. If a directory cannot be watched (unsupported file system, too many watches...), its
+ * listing is instead checked against the directory modification time each time it is requested.</p>
+ */
+@Slf4j
+public class DirectoryListingCache {
+
+    /** Gets notified of changes to the cache. Methods may be called from any thread. */
+    public interface Listener {
+        /** A new listing was put into the cache (possibly identical to a previous one). */
+        void updated(DirectoryListing listing);
+
+        /** The contents of the given directory changed, so its listing was dropped from the cache. */
+        void invalidated(File directory);
+    }
+
+    private record Cached(DirectoryListing listing, boolean watched) {}
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<File, Cached> cache = new ConcurrentHashMap<>();
+    /** Number of invalidations seen for each directory, used to detect changes happening while listing. */
+    private final Map<File, Long> generations = new ConcurrentHashMap<>();
+    /** Null if the default file system does not support watching. */
+    private final WatchService watchService;
+
+    public DirectoryListingCache() {
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Directory changes cannot be watched, falling back to modification times", e);
+            service = null;
+        }
+        this.watchService = service;
+        if (service != null) {
+            Thread thread = new Thread(this::watch, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Get the listing of the given directory.
+     *
+     * @return the listing, or an empty Optional if the given file is not a readable directory.
+     */
+    public Optional<DirectoryListing> get(File directory) {
+        Cached cached = cache.get(directory);
+        if (cached != null && isCurrent(cached)) {
+            return Optional.of(cached.listing());
+        }
+        if (cachedEntry(directory).filter(entry -> !entry.item().isDirectory()).isPresent()) {
+            // a file, according to its parent's listing: no need to try listing it
+            return Optional.empty();
+        }
+        return load(directory);
+    }
+
+    /** Get the entry of a file in the cached listing of its parent directory, without listing anything. This does
+     * not access the file system at all if the parent directory is watched.
+     *
+     * @return the entry, or an empty Optional if the listing of the parent directory is not cached, or does not
+     * contain that file.
+     */
+    public Optional<DirectoryListing.Entry> cachedEntry(File file) {
+        File parent = file.getParentFile();
+        Cached cached = (parent == null) ? null : cache.get(parent);
+        if (cached == null || !isCurrent(cached)) {
+            return Optional.empty();
+        }
+        return cached.listing().find(file.getName());
+    }
+
+    private static boolean isCurrent(Cached cached) {
+        return cached.watched() || cached.listing().lastModified() == cached.listing().directory().lastModified();
+    }
+
+    /** Make a listing obtained elsewhere (typically, a persisted index) available until the directory is
+     * listed again. As it is not watched, it is checked against the directory modification time when requested.
+     */
+    public void preload(DirectoryListing listing) {
+        if (cache.putIfAbsent(listing.directory(), new Cached(listing, false)) == null) {
+            listeners.forEach(l -> l.updated(listing));
+        }
+    }
+
+    /** Start watching the directory of a listing obtained elsewhere, and keep that listing if the directory was not
+     * modified since it was taken, or list the directory again otherwise.
+     *
+     * @return the up-to-date listing, or an empty Optional if the directory cannot be listed any more.
+     */
+    public Optional<DirectoryListing> revalidate(DirectoryListing known) {
+        File directory = known.directory();
+        long generation = generations.getOrDefault(directory, 0L);
+        boolean watched = watch(directory);
+        if (directory.lastModified() != known.lastModified()) {
+            return load(directory);
+        }
+        store(known, watched, generation);
+        return Optional.of(known);
+    }
+
+    /** Drop the cached listing of the given directory, if any. */
+    public void invalidate(File directory) {
+        generations.merge(directory, 1L, Long::sum);
+        cache.remove(directory);
+        listeners.forEach(l -> l.invalidated(directory));
+    }
+
+    private Optional<DirectoryListing> load(File directory) {
+        long generation = generations.getOrDefault(directory, 0L);
+        // register before listing, so that no change can go unnoticed
+        boolean watched = watch(directory);
+
+        long lastModified = directory.lastModified();
+        List<DirectoryListing.Entry> entries = new ArrayList<>();
+        try (var stream = Files.newDirectoryStream(directory.toPath())) {
+            List<Path> paths = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            for (Path path : stream) {
+                paths.add(path);
+                names.add(path.getFileName().toString());
+            }
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                boolean isDirectory;
+                long size, modified;
+                try {
+                    var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    isDirectory = attributes.isDirectory();
+                    size = attributes.size();
+                    modified = attributes.lastModifiedTime().toMillis();
+                } catch (IOException e) {
+                    // dangling symbolic link, or file removed meanwhile
+                    isDirectory = false;
+                    size = 0;
+                    modified = 0;
+                }
+                entries.add(new DirectoryListing.Entry(
+                        new Item(new File(directory, name), isDirectory),
+                        name.toLowerCase(Locale.ROOT),
+                        names.contains(name + ".jpeg"),
+                        size,
+                        modified));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            log.debug("Could not list {}: {}", directory, e.toString());
+            cache.remove(directory);
+            return Optional.empty();
+        }
+        entries.sort(DirectoryListing.ORDER);
+
+        var listing = new DirectoryListing(directory, lastModified, List.copyOf(entries));
+        store(listing, watched, generation);
+        return Optional.of(listing);
+    }
+
+    private void store(DirectoryListing listing, boolean watched, long generation) {
+        File directory = listing.directory();
+        var cached = new Cached(listing, watched);
+        cache.put(directory, cached);
+        if (generations.getOrDefault(directory, 0L) != generation) {
+            // something changed while we were listing: don't keep a possibly stale listing
+            // (listeners were notified of the invalidation, and will ask again if they need to)
+            cache.remove(directory, cached);
+        } else {
+            listeners.forEach(l -> l.updated(listing));
+        }
+    }
+
+    private boolean watch(File directory) {
+        if (watchService == null) {
+            return false;
+        }
+        try {
+            directory.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not watch {}: {}", directory, e.toString());
+            return false;
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            // any event (including OVERFLOW) means the listing may be out of date
+            key.pollEvents();
+            invalidate(((Path) key.watchable()).toFile());
+            // if the directory is gone, the key becomes invalid and will be registered again if it comes back
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.gamboni.mserver.library;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.Item;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Crawls the whole library in the background so that its directory listings are available from memory.
+ *
+ * <p>The result of each crawl is saved in a binary file, which is reloaded on startup. The crawl following a restart is
+ * incremental: directories whose modification time did not change keep their persisted listing instead of being
+ * listed again. (Their subdirectories still need to be checked, as changes deep in the tree do not affect the
+ * modification time of ancestors.)</p>
+ *
+ * <p>File format: a header (magic number, version, root path) followed by, for each directory, its path relative to
+ * the root, its modification time, its entry count, and for each entry its name, a flag byte (directory, has art),
+ * size and modification time.</p>
+ */
+@Slf4j
+public class LibraryIndex {
+    private static final int MAGIC = 0x4d534958; // "MSIX"
+    private static final int VERSION = 1;
+    private static final int DIRECTORY_FLAG = 1;
+    private static final int ART_FLAG = 2;
+
+    private final File root;
+    private final DirectoryListingCache listings;
+    private final Path indexFile;
+    private final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger("mserver.indexerThreads", Runtime.getRuntime().availableProcessors()));
+
+    public LibraryIndex(File root, DirectoryListingCache listings, Path indexFile) {
+        this.root = root;
+        this.listings = listings;
+        this.indexFile = indexFile;
+    }
+
+    /** Load the persisted index, then crawl the library in the background and save the result. */
+    public void start() {
+        Map<File, DirectoryListing> previous = load();
+        previous.values().forEach(listings::preload);
+        pool.execute(() -> {
+            try {
+                save(crawl(previous));
+            } catch (RuntimeException e) {
+                log.error("Library crawl failed", e);
+            }
+        });
+    }
+
+    private Collection<DirectoryListing> crawl(Map<File, DirectoryListing> previous) {
+        long start = System.currentTimeMillis();
+        var result = new ConcurrentLinkedQueue<DirectoryListing>();
+        var visited = ConcurrentHashMap.<Path>newKeySet();
+        var reused = new AtomicInteger();
+
+        class Crawl extends RecursiveAction {
+            private final File directory;
+
+            Crawl(File directory) {
+                this.directory = directory;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    // protect against symbolic link loops
+                    if (!visited.add(directory.toPath().toRealPath())) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+                DirectoryListing known = previous.get(directory);
+                Optional<DirectoryListing> listing = (known == null) ?
+                        listings.get(directory) :
+                        listings.revalidate(known);
+                listing.ifPresent(l -> {
+                    if (l == known) {
+                        reused.incrementAndGet();
+                    }
+                    result.add(l);
+                    invokeAll(l.entries().stream()
+                            .filter(e -> e.item().isDirectory())
+                            .map(e -> new Crawl(e.item().file))
+                            .toList());
+                });
+            }
+        }
+
+        pool.invoke(new Crawl(root));
+        log.info("Indexed {} directories ({} unchanged) in {}ms",
+                result.size(), reused.get(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private Map<File, DirectoryListing> load() {
+        Map<File, DirectoryListing> result = new HashMap<>();
+        if (!Files.exists(indexFile)) {
+            return result;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(root.getPath())) {
+                log.info("Ignoring incompatible index {}", indexFile);
+                return result;
+            }
+            int directoryCount = in.readInt();
+            for (int d = 0; d < directoryCount; d++) {
+                String relative = in.readUTF();
+                File directory = relative.isEmpty() ? root : new File(root, relative);
+                long lastModified = in.readLong();
+                int entryCount = in.readInt();
+                List<DirectoryListing.Entry> entries = new ArrayList<>(entryCount);
+                for (int e = 0; e < entryCount; e++) {
+                    String name = in.readUTF();
+                    int flags = in.readByte();
+                    entries.add(new DirectoryListing.Entry(
+                            new Item(new File(directory, name), (flags & DIRECTORY_FLAG) != 0),
+                            name.toLowerCase(Locale.ROOT),
+                            (flags & ART_FLAG) != 0,
+                            in.readLong(),
+                            in.readLong()));
+                }
+                result.put(directory, new DirectoryListing(directory, lastModified, List.copyOf(entries)));
+            }
+            log.info("Loaded {} directories from {}", result.size(), indexFile);
+        } catch (IOException e) {
+            log.warn("Could not read index {}, rebuilding it", indexFile, e);
+            result.clear();
+        }
+        return result;
+    }
+
+    private void save(Collection<DirectoryListing> directories) {
+        Path rootPath = root.toPath();
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path temp = Files.createTempFile(indexFile.getParent(), "index", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.getPath());
+                out.writeInt(directories.size());
+                for (var directory : directories) {
+                    out.writeUTF(rootPath.relativize(directory.directory().toPath()).toString());
+                    out.writeLong(directory.lastModified());
+                    out.writeInt(directory.entries().size());
+                    for (var entry : directory.entries()) {
+                        out.writeUTF(entry.item().name);
+                        out.writeByte((entry.item().isDirectory() ? DIRECTORY_FLAG : 0) |
+                                (entry.hasArt() ? ART_FLAG : 0));
+                        out.writeLong(entry.size());
+                        out.writeLong(entry.lastModified());
+                    }
+                }
+            }
+            // replace the old index atomically, so that a crash never leaves a truncated index behind
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not save index {}", indexFile, e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.gamboni.mserver.library;
+
+/** Information read from inside a media file.
+ *
+ * @param title the title tag, or null if the file has none.
+ * @param duration duration in seconds, or 0 if unknown.
+ */
+public record MediaMetadata(String title, double duration) {
+    static final MediaMetadata UNKNOWN = new MediaMetadata(null, 0);
+}
@@ -0,0 +1,247 @@
+package org.gamboni.mserver.library;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.Item;
+import org.gamboni.mserver.tech.Mapping;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Reads tags and durations of music files in the background, and keeps them in memory (and on disk) so that they
+ * are available without any decoding when rendering pages or starting playback.
+ *
+ * <p>Files are probed with {@code ffprobe} on a bounded worker pool as soon as they appear in a directory listing,
+ * unless the cache already holds metadata for the same path and modification time. The cache is saved to disk a
+ * little while after it changes, and loaded on startup.</p>
+ */
+@Slf4j
+public class MetadataCache implements DirectoryListingCache.Listener {
+    private static final int MAGIC = 0x4d534d44; // "MSMD"
+    private static final int VERSION = 1;
+    private static final long SAVE_DELAY_SECONDS = 30;
+    private static final long PROBE_TIMEOUT_SECONDS = 30;
+    private static final String FFPROBE = System.getProperty("mserver.ffprobe", "ffprobe");
+
+    private record Cached(long lastModified, MediaMetadata metadata) {}
+
+    /* What we need from ffprobe's output */
+    private record Probe(Format format) {}
+    private record Format(String duration, Map<String, String> tags) {}
+
+    private final Mapping mapping;
+    private final Path cacheFile;
+    private final Map<File, Cached> cache = new ConcurrentHashMap<>();
+    private final Set<File> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private volatile boolean probeAvailable = true;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(daemon("metadata-save"));
+
+    public MetadataCache(Mapping mapping, Path cacheFile) {
+        this.mapping = mapping;
+        this.cacheFile = cacheFile;
+        int threads = Integer.getInteger("mserver.metadataThreads", 2);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemon("metadata"));
+        load();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Metadata of the given file, if already known. */
+    public Optional<MediaMetadata> get(File file) {
+        return Optional.ofNullable(cache.get(file)).map(Cached::metadata);
+    }
+
+    /** Title to display for the given item: its title tag if it has one, or else its friendly name. */
+    public String title(Item item) {
+        return get(item.file)
+                .map(MediaMetadata::title)
+                .orElseGet(item::friendlyName);
+    }
+
+    /** Duration of the given file in seconds, or 0 if unknown. */
+    public double duration(File file) {
+        return get(file).map(MediaMetadata::duration).orElse(0.0);
+    }
+
+    @Override
+    public void updated(DirectoryListing listing) {
+        for (var entry : listing.entries()) {
+            if (!entry.item().isMusic()) {
+                continue;
+            }
+            File file = entry.item().file;
+            Cached cached = cache.get(file);
+            if ((cached == null || cached.lastModified() != entry.lastModified()) &&
+                    probeAvailable &&
+                    pending.add(file)) {
+                workers.execute(() -> {
+                    try {
+                        probe(file, entry.lastModified());
+                    } finally {
+                        pending.remove(file);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void invalidated(File directory) {
+        // nothing to do: we'll get the new listing through updated()
+    }
+
+    private void probe(File file, long lastModified) {
+        if (!probeAvailable) {
+            return;
+        }
+        MediaMetadata metadata;
+        Path output;
+        try {
+            output = Files.createTempFile("ffprobe", ".json");
+        } catch (IOException e) {
+            log.warn("Could not create a temporary file to probe {}", file, e);
+            return;
+        }
+        try {
+            /* Output goes to a file rather than a pipe, so that we can give up on a hanging ffprobe without first
+             * waiting for it to close its output. */
+            Process process = new ProcessBuilder(FFPROBE,
+                    "-v", "quiet",
+                    "-print_format", "json",
+                    "-show_format",
+                    file.getPath())
+                    .redirectOutput(output.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.debug("{} timed out probing {}", FFPROBE, file);
+                process.destroyForcibly();
+                metadata = MediaMetadata.UNKNOWN;
+            } else if (process.exitValue() != 0) {
+                metadata = MediaMetadata.UNKNOWN;
+            } else {
+                metadata = parse(Files.readString(output, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            log.warn("Could not run {}, media metadata will not be available: {}", FFPROBE, e.toString());
+            probeAvailable = false;
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.debug("Could not parse metadata of {}", file, e);
+            metadata = MediaMetadata.UNKNOWN;
+        } finally {
+            try {
+                Files.deleteIfExists(output);
+            } catch (IOException e) {
+                log.debug("Could not delete {}", output, e);
+            }
+        }
+        // remember failures as well, so that we don't probe the same file over and over again
+        cache.put(file, new Cached(lastModified, metadata));
+        scheduleSave();
+    }
+
+    private MediaMetadata parse(String output) {
+        Format format = mapping.readValue(output, Probe.class).format();
+        if (format == null) {
+            return MediaMetadata.UNKNOWN;
+        }
+        String title = null;
+        if (format.tags() != null) {
+            // tag name case depends on the container
+            for (var tag : format.tags().entrySet()) {
+                if (tag.getKey().equalsIgnoreCase("title") && !tag.getValue().isBlank()) {
+                    title = tag.getValue().strip();
+                }
+            }
+        }
+        double duration = 0;
+        if (format.duration() != null) {
+            try {
+                duration = Double.parseDouble(format.duration());
+            } catch (NumberFormatException e) {
+                // "N/A"
+            }
+        }
+        return new MediaMetadata(title, duration);
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(() -> {
+                saveScheduled.set(false);
+                save();
+            }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("Ignoring incompatible metadata cache {}", cacheFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(in.readUTF());
+                long lastModified = in.readLong();
+                String title = in.readBoolean() ? in.readUTF() : null;
+                double duration = in.readDouble();
+                cache.put(file, new Cached(lastModified, new MediaMetadata(title, duration)));
+            }
+            log.info("Loaded metadata of {} files from {}", cache.size(), cacheFile);
+        } catch (IOException e) {
+            log.warn("Could not read metadata cache {}, rebuilding it", cacheFile, e);
+            cache.clear();
+        }
+    }
+
+    private void save() {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            Path temp = Files.createTempFile(cacheFile.getParent(), "metadata", ".tmp");
+            var snapshot = Map.copyOf(cache);
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (var entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey().getPath());
+                    out.writeLong(entry.getValue().lastModified());
+                    String title = entry.getValue().metadata().title();
+                    out.writeBoolean(title != null);
+                    if (title != null) {
+                        out.writeUTF(title);
+                    }
+                    out.writeDouble(entry.getValue().metadata().duration());
+                }
+            }
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not save metadata cache {}", cacheFile, e);
+        }
+    }
+}
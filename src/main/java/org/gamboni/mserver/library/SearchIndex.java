@@ -0,0 +1,305 @@
+package org.gamboni.mserver.library;
+
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.mserver.data.Item;
+import org.gamboni.mserver.tech.Mapping;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** In-memory n-gram index of the library, for searching items by (friendly) name and path.
+ *
+ * <p>Every browsable item (directory or music file) is a document, whose text is its friendly name and relative path,
+ * in lower case. Each trigram of that text maps to the (sorted) list of documents containing it. A query is
+ * answered by intersecting the lists of its trigrams, then checking that the candidates really contain each word.
+ * Bigrams are only indexed at the start of words, so two-letter query words match word prefixes, and one-letter
+ * words only filter the results of other words (or require a full scan if there are no other words).</p>
+ *
+ * <p>The index follows the {@link DirectoryListingCache}: each new listing replaces the documents of its directory.
+ * Replaced documents are left as tombstones until they outnumber live ones, at which point the index is rebuilt.
+ * When a directory changes, it is listed again after a short delay (so that a burst of changes causes a single
+ * refresh).</p>
+ */
+@Slf4j
+public class SearchIndex implements DirectoryListingCache.Listener {
+    private static final long REFRESH_DELAY_MILLIS = 1000;
+    /** Distinguishes bigrams from trigrams (which only use the lower 48 bits). */
+    private static final long BIGRAM = 1L << 48;
+    private static final Comparator<DirectoryListing.Entry> BY_PATH = Comparator.comparing(entry -> entry.item().file);
+
+    private record Document(DirectoryListing.Entry entry, String text) {}
+
+    /** Growable list of document ids, in increasing order. */
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return; // trigram appearing more than once in the same document
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /** Index of the first id greater than or equal to the given one, starting from {@code from}. */
+        int seek(int from, int id) {
+            // exponential search: ids are usually close to the previous position
+            int step = 1;
+            while (from + step < size && ids[from + step] < id) {
+                from += step;
+                step *= 2;
+            }
+            int found = Arrays.binarySearch(ids, from, Math.min(from + step + 1, size), id);
+            return (found >= 0) ? found : -found - 1;
+        }
+    }
+
+    private record IndexedDirectory(DirectoryListing listing, int[] documents) {}
+
+    private final Mapping mapping;
+    private final DirectoryListingCache listings;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /* The following fields are guarded by lock */
+    /** All documents, indexed by id. Null for removed documents. */
+    private final List<Document> documents = new ArrayList<>();
+    private final Map<Long, Postings> grams = new HashMap<>();
+    private final Map<File, IndexedDirectory> directories = new HashMap<>();
+    private int removed = 0;
+
+    private final Set<File> pendingRefresh = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "search-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SearchIndex(Mapping mapping, DirectoryListingCache listings) {
+        this.mapping = mapping;
+        this.listings = listings;
+        listings.addListener(this);
+    }
+
+    /** Find items whose friendly name or path contain all the words of the given query (ignoring case).
+     *
+     * @param limit maximum number of results to return.
+     * @return matching entries, sorted by path.
+     */
+    public List<DirectoryListing.Entry> search(String query, int limit) {
+        List<String> terms = Arrays.stream(query.toLowerCase(Locale.ROOT).split("\\s+"))
+                .filter(t -> !t.isEmpty())
+                .toList();
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        /* Document ids follow the order in which directories were listed, not paths: all matches must be looked at to
+         * find the first ones by path. This is a max-heap of the first ones found so far. */
+        PriorityQueue<DirectoryListing.Entry> result = new PriorityQueue<>(BY_PATH.reversed());
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : terms) {
+                for (long gram : queryGrams(term)) {
+                    Postings postings = this.grams.get(gram);
+                    if (postings == null) {
+                        return List.of();
+                    } else if (!lists.contains(postings)) {
+                        lists.add(postings);
+                    }
+                }
+            }
+            if (lists.isEmpty()) {
+                // only single-character words: scan everything
+                for (int id = 0; id < documents.size(); id++) {
+                    addIfMatches(id, terms, limit, result);
+                }
+            } else {
+                lists.sort(Comparator.comparingInt(p -> p.size));
+                intersect(lists, terms, limit, result);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<DirectoryListing.Entry> sorted = new ArrayList<>(result);
+        sorted.sort(BY_PATH);
+        return sorted;
+    }
+
+    /** Add matching documents appearing in all given lists, walking through all lists in parallel. */
+    private void intersect(List<Postings> lists, List<String> terms, int limit,
+                           PriorityQueue<DirectoryListing.Entry> result) {
+        Postings smallest = lists.get(0);
+        int[] cursors = new int[lists.size()];
+        candidates:
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            for (int l = 1; l < cursors.length; l++) {
+                Postings list = lists.get(l);
+                cursors[l] = list.seek(cursors[l], id);
+                if (cursors[l] == list.size) {
+                    return; // no more common documents
+                } else if (list.ids[cursors[l]] != id) {
+                    continue candidates;
+                }
+            }
+            addIfMatches(id, terms, limit, result);
+        }
+    }
+
+    /** Add the given document to the result if it matches, keeping only the first {@code limit} ones by path. */
+    private void addIfMatches(int id, List<String> terms, int limit, PriorityQueue<DirectoryListing.Entry> result) {
+        Document document = documents.get(id);
+        if (document == null || (result.size() == limit && BY_PATH.compare(document.entry, result.peek()) > 0)) {
+            return; // removed, or would not make it into the result anyway: don't bother checking the text
+        }
+        if (terms.stream().allMatch(document.text::contains)) {
+            result.add(document.entry);
+            if (result.size() > limit) {
+                result.poll();
+            }
+        }
+    }
+
+    @Override
+    public void updated(DirectoryListing listing) {
+        List<File> unknown = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            var previous = directories.get(listing.directory());
+            if (previous != null && previous.listing() == listing) {
+                return;
+            }
+            if (previous != null) {
+                removeDocuments(previous);
+            }
+            directories.put(listing.directory(), new IndexedDirectory(listing, addDocuments(listing)));
+            for (var entry : listing.entries()) {
+                if (entry.item().isDirectory() && !directories.containsKey(entry.item().file)) {
+                    unknown.add(entry.item().file);
+                }
+            }
+            if (removed > documents.size() / 2) {
+                rebuild();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // new subdirectories (unless the crawler gets to them first)
+        unknown.forEach(this::scheduleRefresh);
+    }
+
+    @Override
+    public void invalidated(File directory) {
+        scheduleRefresh(directory);
+    }
+
+    private void scheduleRefresh(File directory) {
+        if (pendingRefresh.add(directory)) {
+            refresher.schedule(() -> {
+                pendingRefresh.remove(directory);
+                try {
+                    // if the listing succeeds, the cache calls updated()
+                    if (listings.get(directory).isEmpty()) {
+                        remove(directory);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Could not refresh {}", directory, e);
+                }
+            }, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void remove(File directory) {
+        lock.writeLock().lock();
+        try {
+            var previous = directories.remove(directory);
+            if (previous != null) {
+                removeDocuments(previous);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int[] addDocuments(DirectoryListing listing) {
+        return listing.entries().stream()
+                .filter(entry -> entry.item().isDirectory() || entry.item().isMusic())
+                .mapToInt(this::addDocument)
+                .toArray();
+    }
+
+    private int addDocument(DirectoryListing.Entry entry) {
+        int id = documents.size();
+        Item item = entry.item();
+        String text = (item.friendlyName() + "\n" + mapping.fileToPath(item.file)).toLowerCase(Locale.ROOT);
+        documents.add(new Document(entry, text));
+        for (long gram : documentGrams(text)) {
+            grams.computeIfAbsent(gram, __ -> new Postings()).add(id);
+        }
+        return id;
+    }
+
+    private void removeDocuments(IndexedDirectory directory) {
+        for (int id : directory.documents()) {
+            documents.set(id, null);
+        }
+        removed += directory.documents().length;
+    }
+
+    /** Rebuild the index from scratch, to get rid of removed documents. */
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        documents.clear();
+        grams.clear();
+        removed = 0;
+        directories.replaceAll((directory, indexed) ->
+                new IndexedDirectory(indexed.listing(), addDocuments(indexed.listing())));
+        log.debug("Rebuilt search index with {} documents in {}ms",
+                documents.size(), System.currentTimeMillis() - start);
+    }
+
+    /** The grams to look up for a query word: its trigrams, or its bigram if it only has two characters. */
+    private static long[] queryGrams(String term) {
+        if (term.length() == 2) {
+            return new long[]{ bigram(term, 0) };
+        }
+        long[] result = new long[Math.max(0, term.length() - 2)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = trigram(term, i);
+        }
+        return result;
+    }
+
+    /** The grams to index for a document: all its trigrams, plus the bigrams starting a word. */
+    private static List<Long> documentGrams(String text) {
+        List<Long> result = new ArrayList<>();
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            if (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1))) {
+                result.add(bigram(text, i));
+            }
+            if (i + 3 <= text.length()) {
+                result.add(trigram(text, i));
+            }
+        }
+        return result;
+    }
+
+    private static long bigram(String text, int start) {
+        return BIGRAM | ((long) text.charAt(start) << 16) | text.charAt(start + 1);
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) |
+                ((long) text.charAt(start + 1) << 16) |
+                text.charAt(start + 2);
+    }
+}
@@ -0,0 +1,131 @@
+package org.gamboni.mserver.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Draws random music files from a folder and its subfolders, without repeating any file before all others have been
+ * drawn.
+ *
+ * <p>Candidates are collected once into an array (following symbolic links, from the {@link DirectoryListingCache}).
+ * Drawing swaps a random remaining candidate to the end of the array, so each draw takes constant time. The
+ * candidates are collected again on the next draw after any directory they came from changed.</p>
+ *
+ * <p>Drawing is not thread-safe: it is meant to be called from the controller's event queue.</p>
+ */
+public class ShuffleBag implements DirectoryListingCache.Listener, AutoCloseable {
+
+    private final File folder;
+    private final DirectoryListingCache listings;
+
+    /** Directories the candidates were collected from. */
+    private volatile Set<File> directories = Set.of();
+    private volatile boolean stale = true;
+    /** Set while collecting candidates: listings loaded by that thread do not make the bag stale. */
+    private volatile Thread collector = null;
+
+    /** Candidates not drawn yet in this round come first, followed by the ones already drawn. */
+    private File[] candidates = new File[0];
+    private int remaining = 0;
+    private File last = null;
+
+    public ShuffleBag(File folder, DirectoryListingCache listings) {
+        this.folder = folder;
+        this.listings = listings;
+        listings.addListener(this);
+    }
+
+    /** Draw the next file.
+     *
+     * @return a music file, or an empty Optional if the folder does not contain any.
+     */
+    public Optional<File> next() {
+        if (stale) {
+            collect();
+        }
+        if (candidates.length == 0) {
+            return Optional.empty();
+        }
+        if (remaining == 0) {
+            // start a new round
+            remaining = candidates.length;
+        }
+        int index = ThreadLocalRandom.current().nextInt(remaining);
+        if (candidates[index].equals(last) && remaining > 1) {
+            // first draw of a new round must not repeat the last draw of the previous one
+            index = (index + 1) % remaining;
+        }
+        File result = candidates[index];
+        candidates[index] = candidates[remaining - 1];
+        candidates[remaining - 1] = result;
+        remaining--;
+        last = result;
+        return Optional.of(result);
+    }
+
+    @Override
+    public void updated(DirectoryListing listing) {
+        if (Thread.currentThread() != collector && directories.contains(listing.directory())) {
+            stale = true;
+        }
+    }
+
+    @Override
+    public void invalidated(File directory) {
+        if (directories.contains(directory)) {
+            stale = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        listings.removeListener(this);
+    }
+
+    private void collect() {
+        stale = false;
+        Set<File> newDirectories = new HashSet<>();
+        List<File> found = new ArrayList<>();
+        collector = Thread.currentThread();
+        try {
+            collect(folder, new HashSet<>(), newDirectories, found);
+        } finally {
+            collector = null;
+        }
+        this.directories = Set.copyOf(newDirectories);
+
+        // keep files drawn in the current round at the end, so they are not repeated before the others
+        Set<File> drawn = new HashSet<>(Arrays.asList(candidates).subList(remaining, candidates.length));
+        List<File> undrawn = new ArrayList<>(found.size());
+        List<File> alreadyDrawn = new ArrayList<>();
+        for (File file : found) {
+            (drawn.contains(file) ? alreadyDrawn : undrawn).add(file);
+        }
+        this.remaining = undrawn.size();
+        undrawn.addAll(alreadyDrawn);
+        this.candidates = undrawn.toArray(File[]::new);
+    }
+
+    private void collect(File directory, Set<Path> visited, Set<File> directories, List<File> found) {
+        try {
+            // protect against symbolic link loops
+            if (!visited.add(directory.toPath().toRealPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        listings.get(directory).ifPresent(listing -> {
+            directories.add(directory);
+            for (var entry : listing.entries()) {
+                if (entry.item().isDirectory()) {
+                    collect(entry.item().file, visited, directories, found);
+                } else if (entry.item().isMusic()) {
+                    found.add(entry.item().file);
+                }
+            }
+        });
+    }
+}
@@ -6,6 +6,7 @@ package org.gamboni.mserver.tech;
 import org.gamboni.tech.web.js.JavaScript;
 import org.gamboni.tech.web.ui.AbstractPage;
 import org.gamboni.tech.web.ui.ScriptMember;
+import spark.Request;
 import spark.Response;
 import spark.Spark;
 
@@ -31,9 +32,16 @@ import static org.gamboni.tech.web.js.JavaScript.seq;
 public class AbstractController {
 	private final List<ScriptMember> jsProxy = new ArrayList<>();
 	public final Mapping mapping;
+	/** Prepended to the URL of all services. */
+	private final String prefix;
 
 	protected AbstractController(Mapping mapping) {
+		this(mapping, "");
+	}
+
+	protected AbstractController(Mapping mapping, String prefix) {
 		this.mapping = mapping;
+		this.prefix = prefix;
 	}
 
 	protected interface ServiceBody {
@@ -63,16 +71,17 @@ public class AbstractController {
 								r -> seq(
 										r.invoke("open",
 												literal("POST"),
-												literal("/"+ name),
+												literal(prefix + "/" + name),
 												literal(true)),
 				r.invoke("send", literal(""))))));
 
-		Spark.post("/"+ name, (req, res) -> json(res, serverBody.execute()));
+		Spark.post(prefix + "/" + name, (req, res) -> json(req, res, serverBody.execute()));
 		return fun.invoke();
 	}
 
-	private String json(Response res, Object result) {
+	private String json(Request req, Response res, Object result) {
 		res.type("application/json");
+		HttpCompression.compressIfAccepted(req, res);
 		return mapping.writeValueAsString(result);
 	}
 	
@@ -84,11 +93,11 @@ public class AbstractController {
 								r -> seq(
 										r.invoke("open",
 												literal("POST"),
-												literal("/"+ name),
+												literal(prefix + "/" + name),
 												literal(true)),
 				r.invoke("send", arg)))));
 		
-		Spark.post("/"+ name, (req, res) -> json(res, serviceBody.execute(req.body())));
+		Spark.post(prefix + "/" + name, (req, res) -> json(req, res, serviceBody.execute(req.body())));
 		
 		return fun::invoke;
 	}
@@ -111,10 +120,10 @@ public class AbstractController {
 										),
 										r.invoke("open",
 												literal("GET"),
-												literal("/" + name),
+												literal(prefix + "/" + name),
 												literal(true)),
 										r.invoke("send", literal(""))))));
-		Spark.get("/" + name, (req, res) -> json(res, serviceBody.execute()));
+		Spark.get(prefix + "/" + name, (req, res) -> json(req, res, serviceBody.execute()));
 
 		String resultVariable = "result";
 
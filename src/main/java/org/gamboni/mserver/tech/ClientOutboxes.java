@@ -0,0 +1,191 @@
+package org.gamboni.mserver.tech;
+
+import com.fasterxml.jackson.databind.util.RawValue;
+import lombok.extern.slf4j.Slf4j;
+import org.gamboni.tech.history.HistoryStore;
+import org.gamboni.tech.history.event.Event;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/** Sends events to web socket clients in the background, so that a slow client never holds up the caller (or
+ * other clients).
+ *
+ * <p>Events may be queued as pre-serialised {@link RawValue}s, so that an event sent to many clients is only
+ * converted to JSON once: each client's batch is then serialised by concatenating the shared fragments.</p>
+ *
+ * <p>Each client has its own queue, drained by at most one thread at a time. Queued events are coalesced by key: an
+ * event replaces any queued event with the same key, as it makes it obsolete (for instance, a new state of the same
+ * file). A client with more than {@link #MAX_PENDING} distinct events queued is considered to be lagging too far
+ * behind: its queue is dropped, and it is sent a full resync instead once it is ready to receive again.</p>
+ *
+ * <p>Events bringing a client up to date when it connects are queued with {@link #sendAll}: they are sent in order
+ * after anything queued before, and later events are sent after them, even if they supersede earlier ones.</p>
+ */
+@Slf4j
+public class ClientOutboxes {
+    private static final int MAX_PENDING = Integer.getInteger("mserver.clientQueueLimit", 1000);
+
+    private final Mapping mapping;
+    private final Function<BroadcastTarget, List<?>> resync;
+    private final Map<BroadcastTarget, Outbox> outboxes = new ConcurrentHashMap<>();
+    /* Threads only wait for clients, so one per client at most is never too many */
+    private final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-send");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param resync computes the events bringing a client that lost events up to date.
+     */
+    public ClientOutboxes(Mapping mapping, Function<BroadcastTarget, List<?>> resync) {
+        this.mapping = mapping;
+        this.resync = resync;
+    }
+
+    /** Queue the notifications of an update session for sending. Never blocks.
+     *
+     * @param clients all connected clients: queues of other clients are forgotten.
+     * @param keys what each event is about, so that events superseding each other are only sent once.
+     */
+    public void broadcast(HistoryStore<?, ?, ?>.PerClientUpdates notifications, Collection<BroadcastTarget> clients,
+                          Function<Event, Object> keys) {
+        if (notifications.hasEvents()) {
+            // most events go to several clients: only convert each of them to JSON once
+            Map<Event, RawValue> frames = new IdentityHashMap<>();
+            for (var client : clients) {
+                for (Event event : notifications.get(client)) {
+                    send(client, keys.apply(event), frames.computeIfAbsent(event, e ->
+                            new RawValue(mapping.writeValueAsString(e))));
+                }
+            }
+            retainAll(clients);
+        }
+    }
+
+    /** Queue an event for sending to a client. Never blocks.
+     *
+     * @param key events with the same key supersede each other.
+     * @param event the event, or its serialised form.
+     */
+    public void send(BroadcastTarget client, Object key, Object event) {
+        outboxes.computeIfAbsent(client, Outbox::new).offer(key, event);
+    }
+
+    /** Queue events for sending to a client, after anything queued already, and before anything queued later. Never
+     * blocks.
+     */
+    public void sendAll(BroadcastTarget client, List<?> events) {
+        outboxes.computeIfAbsent(client, Outbox::new).offerAll(events);
+    }
+
+    /** Forget the queue of a client (which has disconnected). */
+    public void remove(BroadcastTarget client) {
+        outboxes.remove(client);
+    }
+
+    /** Forget queues of clients other than the given ones (which have disconnected). */
+    public void retainAll(Collection<BroadcastTarget> clients) {
+        outboxes.keySet().retainAll(clients);
+    }
+
+    private class Outbox implements Runnable {
+        private final BroadcastTarget client;
+
+        /* The following fields are guarded by this */
+        /** Queued events, oldest first. Events only supersede those of the same segment, by key. */
+        private final Deque<Map<Object, Object>> pending = new ArrayDeque<>();
+        /** Whether events may no longer be added to the last segment. */
+        private boolean sealed = false;
+        /** Number of queued events, in all segments. */
+        private int size = 0;
+        private boolean draining = false;
+        private boolean overflowed = false;
+
+        Outbox(BroadcastTarget client) {
+            this.client = client;
+        }
+
+        synchronized void offer(Object key, Object event) {
+            if (overflowed) {
+                return; // the resync will include this event
+            }
+            if (pending.isEmpty() || sealed) {
+                pending.add(new LinkedHashMap<>());
+                sealed = false;
+            }
+            if (pending.getLast().put(key, event) == null) {
+                size++;
+            }
+            queued();
+        }
+
+        synchronized void offerAll(List<?> events) {
+            if (overflowed) {
+                return; // the resync will include these events
+            }
+            // none of these events supersede each other: key them by position
+            Map<Object, Object> segment = new LinkedHashMap<>();
+            for (int i = 0; i < events.size(); i++) {
+                segment.put(i, events.get(i));
+            }
+            pending.add(segment);
+            sealed = true;
+            size += events.size();
+            queued();
+        }
+
+        private void queued() {
+            if (size > MAX_PENDING) {
+                log.warn("Client {} is lagging behind, it will be resynchronised", client);
+                pending.clear();
+                size = 0;
+                overflowed = true;
+            }
+            if (!draining) {
+                draining = true;
+                senders.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<?> batch;
+                    boolean resyncing;
+                    synchronized (this) {
+                        // events queued from now on are sent after the resync, as they may be newer
+                        resyncing = overflowed;
+                        overflowed = false;
+                        List<Object> events = new ArrayList<>(size);
+                        for (var segment : pending) {
+                            events.addAll(segment.values());
+                        }
+                        batch = events;
+                        pending.clear();
+                        size = 0;
+                        if (!resyncing && batch.isEmpty()) {
+                            draining = false;
+                            return;
+                        }
+                    }
+                    if (resyncing) {
+                        batch = resync.apply(client);
+                    }
+                    client.sendOrLog(batch);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not send events to {}", client, e);
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.gamboni.mserver.tech;
+
+import spark.Request;
+import spark.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/** Gzip compression of responses, for clients that accept it. */
+public class HttpCompression {
+    private static final String GZIP = "gzip";
+
+    private HttpCompression() {}
+
+    /** True if the client sending the given request accepts gzip-compressed responses. */
+    public static boolean acceptsGzip(Request req) {
+        String accepted = req.headers("Accept-Encoding");
+        if (accepted == null) {
+            return false;
+        }
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase(GZIP) &&
+                    !(parts.length > 1 && parts[1].replace(" ", "").matches("q=0(\\.0*)?"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Have Spark compress the (String) value returned by the current route, if the client accepts it. Must not be
+     * used by routes writing to the response themselves. */
+    public static void compressIfAccepted(Request req, Response res) {
+        res.header("Vary", "Accept-Encoding");
+        if (acceptsGzip(req)) {
+            // Spark compresses the response body when this header is set
+            res.header("Content-Encoding", GZIP);
+        }
+    }
+
+    /** The stream to write the response body to: compressed if the client accepts it. Flushing the returned stream
+     * sends everything written so far to the client. */
+    public static OutputStream output(Request req, Response res) throws IOException {
+        res.header("Vary", "Accept-Encoding");
+        OutputStream out = res.raw().getOutputStream();
+        if (acceptsGzip(req)) {
+            res.header("Content-Encoding", GZIP);
+            return new GZIPOutputStream(out, true);
+        } else {
+            return out;
+        }
+    }
+
+    /** Compress the given bytes. */
+    public static byte[] gzip(byte[] data) {
+        var buffer = new ByteArrayOutputStream(data.length / 4);
+        try (var out = new GZIPOutputStream(buffer)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen, we're writing to memory
+        }
+        return buffer.toByteArray();
+    }
+}
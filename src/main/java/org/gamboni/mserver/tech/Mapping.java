@@ -19,7 +19,7 @@ public class Mapping implements Supplier<ObjectMapper> {
         this.fileNameFormat = new FileNameJsonFormat(rootFolder);
         this.jacksonMapper = new ObjectMapper().registerModule(fileNameFormat.jacksonModule())
                 .registerModule(new JavaTimeModule())
-                // This is needed when parsing mpv-sent events, and also to not crash if a front end
+                // This is needed to not crash if a front end
                 // sends junk
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
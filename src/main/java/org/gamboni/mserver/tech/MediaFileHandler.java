@@ -0,0 +1,260 @@
+package org.gamboni.mserver.tech;
+
+import org.eclipse.jetty.server.HttpOutput;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+
+/** Serves files (media or art) to browsers and media clients, with support for
+ * conditional requests ({@code ETag}/{@code Last-Modified}) and byte ranges, so that clients can seek and resume.
+ *
+ * <p>File contents are memory-mapped and handed to Jetty as direct buffers, so they are written to the socket
+ * without being copied through the Java heap.</p>
+ */
+public class MediaFileHandler {
+    /** Maximum number of ranges accepted in a single request (more is most likely abuse). */
+    private static final int MAX_RANGES = 16;
+    /** Size of the regions mapped at once. */
+    private static final long MAX_MAPPED_CHUNK = 16 * 1024 * 1024;
+    private static final String CACHE_CONTROL = "max-age=3600";
+    /** HTTP's IMF-fixdate. Unlike {@link DateTimeFormatter#RFC_1123_DATE_TIME}, the day always has two digits. */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+            Locale.US).withZone(ZoneOffset.UTC);
+
+    private record Range(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long size) {
+            return "bytes " + start + "-" + end + "/" + size;
+        }
+    }
+
+    /** Send the given file.
+     *
+     * @param mimeType the Content-Type to use.
+     * @return an empty string, as the response has been written already (null would make Spark send a 404 page).
+     */
+    public Object serve(Request req, Response res, File file, String mimeType) throws IOException {
+        HttpServletResponse raw = res.raw();
+        var attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+
+        raw.setHeader("ETag", etag);
+        raw.setHeader("Last-Modified", formatDate(lastModified));
+        raw.setHeader("Accept-Ranges", "bytes");
+        raw.setHeader("Cache-Control", CACHE_CONTROL);
+
+        if (notModified(req, etag, lastModified)) {
+            raw.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return "";
+        }
+
+        List<Range> ranges = List.of();
+        String rangeHeader = req.headers("Range");
+        if (rangeHeader != null && ifRangeMatches(req, etag, lastModified)) {
+            Optional<List<Range>> parsed = parseRanges(rangeHeader, size);
+            if (parsed.isEmpty()) {
+                raw.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                raw.setHeader("Content-Range", "bytes */" + size);
+                return "";
+            }
+            ranges = parsed.get();
+        }
+
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream out = raw.getOutputStream();
+            if (ranges.isEmpty()) {
+                raw.setStatus(HttpServletResponse.SC_OK);
+                raw.setContentType(mimeType);
+                raw.setContentLengthLong(size);
+                transfer(channel, 0, size, out);
+            } else if (ranges.size() == 1) {
+                Range range = ranges.get(0);
+                raw.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                raw.setContentType(mimeType);
+                raw.setHeader("Content-Range", range.contentRange(size));
+                raw.setContentLengthLong(range.length());
+                transfer(channel, range.start(), range.length(), out);
+            } else {
+                String boundary = UUID.randomUUID().toString();
+                List<byte[]> partHeaders = new ArrayList<>();
+                long length = 0;
+                for (var range : ranges) {
+                    byte[] header = ("\r\n--" + boundary + "\r\n" +
+                            "Content-Type: " + mimeType + "\r\n" +
+                            "Content-Range: " + range.contentRange(size) + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII);
+                    partHeaders.add(header);
+                    length += header.length + range.length();
+                }
+                byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+                length += trailer.length;
+
+                raw.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                raw.setContentType("multipart/byteranges; boundary=" + boundary);
+                raw.setContentLengthLong(length);
+                for (int i = 0; i < ranges.size(); i++) {
+                    out.write(partHeaders.get(i));
+                    transfer(channel, ranges.get(i).start(), ranges.get(i).length(), out);
+                }
+                out.write(trailer);
+            }
+            raw.flushBuffer();
+        }
+        return "";
+    }
+
+    private static boolean notModified(Request req, String etag, long lastModified) {
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since must be ignored when If-None-Match is present
+            return etagMatches(ifNoneMatch, etag);
+        }
+        return parseDate(req.headers("If-Modified-Since"))
+                .map(since -> lastModified / 1000 <= since.getEpochSecond())
+                .orElse(false);
+    }
+
+    private static boolean etagMatches(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True if there's no If-Range header, or if it matches the current version of the file. */
+    private static boolean ifRangeMatches(Request req, String etag, long lastModified) {
+        String ifRange = req.headers("If-Range");
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        } else {
+            return parseDate(ifRange)
+                    .map(date -> date.getEpochSecond() == lastModified / 1000)
+                    .orElse(false);
+        }
+    }
+
+    /** Parse a Range header.
+     *
+     * @return the requested ranges (empty if the header should be ignored and the whole file sent),
+     * or an empty Optional if the ranges are not satisfiable.
+     */
+    private static Optional<List<Range>> parseRanges(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return Optional.of(List.of()); // unknown unit: ignore
+        }
+        List<Range> result = new ArrayList<>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return Optional.of(List.of()); // syntactically invalid: ignore
+            }
+            long start, end;
+            try {
+                if (dash == 0) { // suffix: last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = (dash == spec.length() - 1) ?
+                            size - 1 :
+                            Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                }
+            } catch (NumberFormatException e) {
+                return Optional.of(List.of());
+            }
+            if (end < start) {
+                if (dash != 0 && start < size) {
+                    return Optional.of(List.of()); // e.g. "bytes=5-2": invalid, ignore
+                }
+                continue; // unsatisfiable
+            }
+            if (start < size) {
+                result.add(new Range(start, end));
+            }
+        }
+        if (result.isEmpty()) {
+            return Optional.empty();
+        } else if (result.size() > MAX_RANGES) {
+            return Optional.of(List.of());
+        } else {
+            return Optional.of(result);
+        }
+    }
+
+    /** Copy a region of the file to the response, without going through the Java heap if possible. */
+    private static void transfer(FileChannel channel, long position, long length, OutputStream out) throws IOException {
+        if (out instanceof HttpOutput jetty) {
+            while (length > 0) {
+                long chunk = Math.min(length, MAX_MAPPED_CHUNK);
+                jetty.write(channel.map(FileChannel.MapMode.READ_ONLY, position, chunk));
+                position += chunk;
+                length -= chunk;
+            }
+        } else {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (length > 0) {
+                long written = channel.transferTo(position, length, target);
+                if (written <= 0) {
+                    throw new IOException("File shrank while being sent");
+                }
+                position += written;
+                length -= written;
+            }
+        }
+    }
+
+    private static String formatDate(long epochMillis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    private static Optional<Instant> parseDate(String header) {
+        if (header == null) {
+            return Optional.empty();
+        }
+        try {
+            // also accepts one-digit days, as sent by some clients
+            return Optional.of(ZonedDateTime.parse(header, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+}
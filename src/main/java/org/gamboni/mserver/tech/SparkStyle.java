@@ -1,13 +1,67 @@
 package org.gamboni.mserver.tech;
 
+import com.google.common.base.Suppliers;
+import com.google.common.hash.Hashing;
 import org.gamboni.tech.web.ui.Css;
 import spark.Spark;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/** A style sheet served by Spark.
+ *
+ * <p>The style sheet is rendered (and compressed) only once. Pages link to it with a URL containing a hash of its
+ * contents, so browsers may cache it forever: a different style sheet would have a different URL.</p>
+ */
 public abstract class SparkStyle extends Css {
+    private static final String VERSION_PARAMETER = "v";
+
+    private record Rendered(String hash, byte[] plain, byte[] gzipped) {}
+
+    /* Rendered on first use rather than in the constructor, so that subclasses are fully initialised by then */
+    private final Supplier<Rendered> rendered = Suppliers.memoize(() -> {
+        byte[] plain = render().getBytes(StandardCharsets.UTF_8);
+        return new Rendered(
+                Hashing.sha256().hashBytes(plain).toString().substring(0, 16),
+                plain,
+                HttpCompression.gzip(plain));
+    });
+
     protected SparkStyle() {
-        Spark.get(getUrl(), (req, res) -> {
-            res.header("Content-Type", getMime());
-            return this.render();
+        Spark.get(super.getUrl(), (req, res) -> {
+            Rendered css = rendered.get();
+            String etag = "\"" + css.hash() + "\"";
+            HttpServletResponse raw = res.raw();
+            raw.setHeader("ETag", etag);
+            raw.setHeader("Vary", "Accept-Encoding");
+            raw.setHeader("Cache-Control", css.hash().equals(req.queryParams(VERSION_PARAMETER)) ?
+                    "public, max-age=31536000, immutable" :
+                    "no-cache");
+            if (etag.equals(req.headers("If-None-Match"))) {
+                raw.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return "";
+            }
+            byte[] body;
+            if (HttpCompression.acceptsGzip(req)) {
+                raw.setHeader("Content-Encoding", "gzip");
+                body = css.gzipped();
+            } else {
+                body = css.plain();
+            }
+            raw.setContentType(getMime());
+            raw.setContentLength(body.length);
+            OutputStream out = raw.getOutputStream();
+            out.write(body);
+            // commit the response, so that Spark does not write anything more
+            raw.flushBuffer();
+            return "";
         });
     }
+
+    @Override
+    public String getUrl() {
+        return super.getUrl() + "?" + VERSION_PARAMETER + "=" + rendered.get().hash();
+    }
 }
@@ -2,14 +2,36 @@ package org.gamboni.mserver.tech.media;
 
 import java.io.File;
 import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface MediaPlayer {
-    void togglePaused();
-
-    void stop();
+    /** Pause or resume playback.
+     *
+     * @return a future completed once the media player acknowledged the command.
+     */
+    CompletableFuture<Void> togglePaused();
+
+    /** Stop playback. The {@link ChangeListener} is notified once playback actually stopped.
+     *
+     * @return a future completed once the media player acknowledged the command.
+     */
+    CompletableFuture<Void> stop();
 
     void playIfIdle(File file, Runnable playingStarted, Runnable otherwise);
 
+    /** Jump to the given position (in seconds) of the file being played.
+     *
+     * @return a future completed once the media player acknowledged the command.
+     */
+    CompletableFuture<Void> seek(double position);
+
+    /** Tell the media player which file the controller intends to play once the current one ends (if any), so that it
+     * can prepare it in advance. This is only a hint: the controller still calls {@link #playIfIdle} for that file
+     * after being notified that the current one {@linkplain ChangeListener#stopped() stopped}.
+     */
+    void setNext(Optional<File> file);
+
     interface ChangeListener {
         public static final ChangeListener NOOP = new ChangeListener() {
             @Override
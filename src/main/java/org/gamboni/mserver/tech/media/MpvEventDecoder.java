@@ -0,0 +1,531 @@
+package org.gamboni.mserver.tech.media;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Streaming decoder for the messages sent by mpv on its JSON IPC socket.
+ *
+ * <p>mpv sends one JSON object per line, for instance:</p>
+ * <pre>
+ * {"event":"property-change","id":1,"name":"playback-time","data":39.040266}
+ * {"request_id":0,"error":"invalid parameter"}
+ * {"data":"374.955828","request_id":12,"error":"success"}
+ * </pre>
+ *
+ * <p>Rather than building a tree (or an object) for each line, this decoder reads the socket buffer in place and
+ * passes property values to an {@link EventHandler} as primitives. As {@code playback-time} changes are sent many
+ * times per second for as long as something is playing, decoding them does not allocate anything: only string
+ * values, event names that were never seen before, and command replies (which are rare) allocate.</p>
+ *
+ * <p>Instances are not thread-safe (they are meant to be used by the selector thread only).</p>
+ */
+public class MpvEventDecoder {
+
+    /** Receives property changes and other events (but not replies to commands). */
+    public interface EventHandler {
+        /** A numeric property changed. */
+        void property(int id, double value);
+
+        /** A boolean property changed. */
+        void property(int id, boolean value);
+
+        /** A string property changed. */
+        void property(int id, String value);
+
+        /** A property became unavailable (typically while no file is loaded). */
+        void propertyUnavailable(int id);
+
+        /** Any event other than "property-change" (for instance "start-file" or "idle"). */
+        void event(String name);
+    }
+
+    /** Receives replies to commands. */
+    public interface ReplyHandler {
+        /**
+         * @param requestId the request id sent along with the command.
+         * @param error "success", or an error message.
+         * @param data the value returned by the command, if any: a string if it was a JSON string, or else JSON source.
+         */
+        void reply(long requestId, String error, String data);
+    }
+
+    private static final byte[] EVENT = ascii("event");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] DATA = ascii("data");
+    private static final byte[] ERROR = ascii("error");
+    private static final byte[] REQUEST_ID = ascii("request_id");
+    private static final byte[] PROPERTY_CHANGE = ascii("property-change");
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private static final int REPLACEMENT_CHARACTER = 0xfffd;
+
+    /** Type of the "data" member of the message being decoded. */
+    private enum DataType { ABSENT, NULL, NUMBER, BOOLEAN, STRING, OTHER }
+
+    private final EventHandler events;
+    private final ReplyHandler replies;
+
+    /* State of the message being decoded, reset for each line */
+    private ByteBuffer buf;
+    private int pos;
+    private int end;
+
+    private int eventStart, eventEnd; // -1 if absent
+    private boolean hasId;
+    private long id;
+    private boolean hasRequestId;
+    private long requestId;
+    private int errorStart, errorEnd; // -1 if absent
+    private DataType dataType;
+    private double dataNumber;
+    private boolean dataBoolean;
+    private int dataStart, dataEnd; // string contents (without quotes) or JSON source
+
+    /** Used to decode strings. Grows as needed. */
+    private byte[] scratch = new byte[256];
+
+    /** Strings previously returned for event names and errors, to avoid allocating them again. */
+    private final byte[][] internedBytes = new byte[16][];
+    private final String[] internedStrings = new String[16];
+    private int internedCount = 0;
+
+    public MpvEventDecoder(EventHandler events, ReplyHandler replies) {
+        this.events = events;
+        this.replies = replies;
+    }
+
+    /** Decode all complete lines in the given buffer (between its position and limit), leaving its position
+     * at the start of the first incomplete line, if any.
+     */
+    public void decode(ByteBuffer buffer) {
+        int lineStart = buffer.position();
+        int limit = buffer.limit();
+        for (int i = lineStart; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                decodeLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        buffer.position(lineStart);
+    }
+
+    private void decodeLine(ByteBuffer buffer, int start, int end) {
+        this.buf = buffer;
+        this.pos = start;
+        this.end = end;
+        eventStart = eventEnd = -1;
+        hasId = hasRequestId = false;
+        errorStart = errorEnd = -1;
+        dataType = DataType.ABSENT;
+
+        try {
+            parseMessage();
+        } catch (MalformedMessage e) {
+            System.err.println("Could not decode mpv message (" + e.getMessage() + "): " + text(start, end));
+            return;
+        }
+
+        if (eventStart != -1) {
+            if (equalsAscii(eventStart, eventEnd, PROPERTY_CHANGE)) {
+                dispatchPropertyChange();
+            } else {
+                events.event(intern(eventStart, eventEnd));
+            }
+        } else if (hasRequestId) {
+            replies.reply(requestId,
+                    (errorStart == -1) ? "success" : intern(errorStart, errorEnd),
+                    switch (dataType) {
+                        case ABSENT, NULL -> null;
+                        case STRING -> decodeString(buffer, dataStart, dataEnd);
+                        default -> text(buffer, dataStart, dataEnd);
+                    });
+        } // else: neither an event nor a reply. Ignore.
+    }
+
+    private void dispatchPropertyChange() {
+        if (!hasId) {
+            return; // not something we observed
+        }
+        int property = (int) id;
+        switch (dataType) {
+            case ABSENT, NULL -> events.propertyUnavailable(property);
+            case NUMBER -> events.property(property, dataNumber);
+            case BOOLEAN -> events.property(property, dataBoolean);
+            case STRING -> events.property(property, decodeString(buf, dataStart, dataEnd));
+            case OTHER -> {} // structured properties are not supported
+        }
+    }
+
+    private void parseMessage() {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            int keyEnd = skipStringContents();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            parseMember(keyStart, keyEnd);
+            skipWhitespace();
+            byte separator = next();
+            if (separator == '}') {
+                return;
+            } else if (separator != ',') {
+                throw new MalformedMessage("expected , or }");
+            }
+        }
+    }
+
+    private void parseMember(int keyStart, int keyEnd) {
+        if (equalsAscii(keyStart, keyEnd, DATA)) {
+            parseData();
+        } else if (equalsAscii(keyStart, keyEnd, EVENT) && peek() == '"') {
+            pos++;
+            eventStart = pos;
+            eventEnd = skipStringContents();
+        } else if (equalsAscii(keyStart, keyEnd, ERROR) && peek() == '"') {
+            pos++;
+            errorStart = pos;
+            errorEnd = skipStringContents();
+        } else if (equalsAscii(keyStart, keyEnd, ID) && isNumberStart(peek())) {
+            hasId = true;
+            id = (long) parseNumber();
+        } else if (equalsAscii(keyStart, keyEnd, REQUEST_ID) && isNumberStart(peek())) {
+            hasRequestId = true;
+            requestId = (long) parseNumber();
+        } else {
+            skipValue();
+        }
+    }
+
+    private void parseData() {
+        byte first = peek();
+        if (first == '"') {
+            pos++;
+            dataType = DataType.STRING;
+            dataStart = pos;
+            dataEnd = skipStringContents();
+        } else if (isNumberStart(first)) {
+            dataType = DataType.NUMBER;
+            dataStart = pos;
+            dataNumber = parseNumber();
+            dataEnd = pos;
+        } else if (first == 't' || first == 'f' || first == 'n') {
+            dataStart = pos;
+            skipLiteral();
+            dataEnd = pos;
+            switch (first) {
+                case 't' -> { dataType = DataType.BOOLEAN; dataBoolean = true; }
+                case 'f' -> { dataType = DataType.BOOLEAN; dataBoolean = false; }
+                default -> dataType = DataType.NULL;
+            }
+        } else {
+            dataType = DataType.OTHER;
+            dataStart = pos;
+            skipValue();
+            dataEnd = pos;
+        }
+    }
+
+    /** Parse a JSON number without going through a String. The result is correctly rounded for numbers with up to
+     * 15 significant digits and a decimal exponent within ±22 (mpv sends times with six decimals), and within a few
+     * ulps otherwise. */
+    private double parseNumber() {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean any = false;
+        while (pos < end && isDigit(peek())) {
+            any = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (next() - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                pos++;
+                exponent++; // digit not representable in the mantissa
+            }
+        }
+        if (pos < end && peek() == '.') {
+            pos++;
+            while (pos < end && isDigit(peek())) {
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (next() - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    pos++;
+                }
+            }
+        }
+        if (!any) {
+            throw new MalformedMessage("expected digits");
+        }
+        if (pos < end && (peek() == 'e' || peek() == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (peek() == '+' || peek() == '-') {
+                negativeExponent = (next() == '-');
+            }
+            int explicit = 0;
+            while (pos < end && isDigit(peek())) {
+                explicit = Math.min(explicit * 10 + (next() - '0'), 10_000);
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+
+        double value = mantissa;
+        if (exponent == 0 || mantissa == 0) {
+            // nothing to scale
+        } else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+            value *= POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value /= POWERS_OF_TEN[-exponent];
+        } else {
+            value *= Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    /** Skip the contents of a string whose opening quote was already consumed, including the closing quote.
+     * @return the position of the closing quote.
+     */
+    private int skipStringContents() {
+        while (true) {
+            byte b = next();
+            if (b == '"') {
+                return pos - 1;
+            } else if (b == '\\') {
+                next(); // whatever is escaped can't be the closing quote (\\uXXXX does not contain quotes either)
+            }
+        }
+    }
+
+    private void skipLiteral() {
+        while (pos < end && Character.isLetter(peek())) {
+            pos++;
+        }
+    }
+
+    /** Skip any JSON value. */
+    private void skipValue() {
+        int depth = 0;
+        do {
+            skipWhitespace();
+            byte b = next();
+            switch (b) {
+                case '{', '[' -> depth++;
+                case '}', ']' -> depth--;
+                case '"' -> skipStringContents();
+                case ',', ':' -> {}
+                default -> {
+                    if (isNumberStart(b)) {
+                        pos--;
+                        parseNumber();
+                    } else if (Character.isLetter(b)) {
+                        skipLiteral();
+                    } else {
+                        throw new MalformedMessage("unexpected character '" + (char) b + "'");
+                    }
+                }
+            }
+        } while (depth > 0);
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf.get(pos);
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw new MalformedMessage("expected " + c);
+        }
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw new MalformedMessage("unexpected end of message");
+        }
+        return buf.get(pos);
+    }
+
+    private byte next() {
+        byte b = peek();
+        pos++;
+        return b;
+    }
+
+    private boolean equalsAscii(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf.get(start + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return a String holding the given (escape-free) bytes, reusing a previous instance if possible. */
+    private String intern(int start, int end) {
+        for (int i = 0; i < internedCount; i++) {
+            if (equalsAscii(start, end, internedBytes[i])) {
+                return internedStrings[i];
+            }
+        }
+        String result = decodeString(buf, start, end);
+        if (internedCount < internedBytes.length) {
+            byte[] bytes = new byte[end - start];
+            buf.get(start, bytes);
+            internedBytes[internedCount] = bytes;
+            internedStrings[internedCount] = result;
+            internedCount++;
+        }
+        return result;
+    }
+
+    /** Decode the contents of a JSON string (without quotes), processing escape sequences. */
+    private String decodeString(ByteBuffer buffer, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\\') {
+                byte escaped = buffer.get(++i);
+                switch (escaped) {
+                    case 'b' -> b = '\b';
+                    case 'f' -> b = '\f';
+                    case 'n' -> b = '\n';
+                    case 'r' -> b = '\r';
+                    case 't' -> b = '\t';
+                    case 'u' -> {
+                        // encode the code point back to UTF-8, recombining surrogate pairs
+                        int codeUnit = hex(buffer, i + 1, end);
+                        i += 4;
+                        int codePoint;
+                        if (codeUnit == -1 || Character.isLowSurrogate((char) codeUnit)) {
+                            codePoint = REPLACEMENT_CHARACTER; // malformed escape, or lone low surrogate
+                        } else if (Character.isHighSurrogate((char) codeUnit)) {
+                            int low = (i + 6 < end && buffer.get(i + 1) == '\\' && buffer.get(i + 2) == 'u') ?
+                                    hex(buffer, i + 3, end) : -1;
+                            if (low != -1 && Character.isLowSurrogate((char) low)) {
+                                i += 6;
+                                codePoint = Character.toCodePoint((char) codeUnit, (char) low);
+                            } else {
+                                codePoint = REPLACEMENT_CHARACTER; // lone high surrogate
+                            }
+                        } else {
+                            codePoint = codeUnit;
+                        }
+                        length = scratchPutUtf8(length, codePoint);
+                        continue;
+                    }
+                    default -> b = escaped; // \" \\ \/
+                }
+            }
+            scratchPut(length++, b);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** Value of the four hexadecimal digits at the given position, or -1 if there aren't four of them before end. */
+    private static int hex(ByteBuffer buffer, int start, int end) {
+        if (start + 4 > end) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit((char) buffer.get(i), 16);
+            if (digit == -1) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /** Put the UTF-8 encoding of a code point in the scratch buffer, at the given index.
+     * @return the index following it.
+     */
+    private int scratchPutUtf8(int index, int codePoint) {
+        if (codePoint < 0x80) {
+            scratchPut(index++, (byte) codePoint);
+        } else if (codePoint < 0x800) {
+            scratchPut(index++, (byte) (0xc0 | (codePoint >> 6)));
+            scratchPut(index++, (byte) (0x80 | (codePoint & 0x3f)));
+        } else if (codePoint < 0x10000) {
+            scratchPut(index++, (byte) (0xe0 | (codePoint >> 12)));
+            scratchPut(index++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            scratchPut(index++, (byte) (0x80 | (codePoint & 0x3f)));
+        } else {
+            scratchPut(index++, (byte) (0xf0 | (codePoint >> 18)));
+            scratchPut(index++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            scratchPut(index++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            scratchPut(index++, (byte) (0x80 | (codePoint & 0x3f)));
+        }
+        return index;
+    }
+
+    private void scratchPut(int index, byte b) {
+        if (index == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        scratch[index] = b;
+    }
+
+    private String text(int start, int end) {
+        return text(buf, start, end);
+    }
+
+    private static String text(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isNumberStart(byte b) {
+        return b == '-' || isDigit(b);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Thrown (and caught) when a line is not valid JSON. Stack traces are not needed. */
+    private static class MalformedMessage extends RuntimeException {
+        MalformedMessage(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
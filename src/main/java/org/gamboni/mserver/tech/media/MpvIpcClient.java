@@ -0,0 +1,287 @@
+package org.gamboni.mserver.tech.media;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.gamboni.mserver.tech.Mapping;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Non-blocking client for the mpv JSON IPC protocol.
+ *
+ * <p>All I/O is done by the shared {@link SelectorLoop}. Commands may be sent from any thread, even before the
+ * connection is established (they are then sent, in order, as soon as it is). Each command gets a {@code request_id}
+ * and its reply completes the corresponding future.</p>
+ *
+ * <p>mpv forgets everything about a client when its connection is lost, so the listener must redo any
+ * per-connection setup (such as observing properties) in {@link Listener#connected()}.</p>
+ */
+public class MpvIpcClient {
+    private static final Duration FIRST_RETRY = Duration.ofMillis(10);
+    private static final Duration MAX_RETRY = Duration.ofMillis(500);
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** Receives events from mpv. Methods are called on the selector thread and must not block. */
+    public interface Listener extends MpvEventDecoder.EventHandler {
+        /** The connection to mpv has been established. Called again after each reconnection.
+         *
+         * <p>Commands sent from this method are written before those that were sent while disconnected.</p>
+         */
+        void connected();
+
+        /** The connection to mpv was lost (usually because mpv terminated). */
+        void disconnected();
+    }
+
+    /** mpv replied to a command with an error status. */
+    public static class MpvException extends IOException {
+        public MpvException(String message) {
+            super(message);
+        }
+    }
+
+    private final UnixDomainSocketAddress address;
+    private final Mapping mapping;
+    private final Listener listener;
+    private final MpvEventDecoder decoder;
+    private final SelectorLoop loop = SelectorLoop.get();
+
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    /* The following fields are only accessed from the selector thread */
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean connected = false;
+    private boolean closed = false;
+    private Duration retryDelay = FIRST_RETRY;
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+    private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    public MpvIpcClient(Path socket, Mapping mapping, Listener listener) {
+        this.address = UnixDomainSocketAddress.of(socket);
+        this.mapping = mapping;
+        this.listener = listener;
+        this.decoder = new MpvEventDecoder(listener, this::handleReply);
+    }
+
+    /** Start connecting to mpv. Attempts are repeated until mpv opens its socket, or this client is closed. */
+    public void connect() {
+        loop.execute(this::tryConnecting);
+    }
+
+    /** Send a command to mpv.
+     *
+     * @return a future completed with the {@code data} field of mpv's reply (possibly null; if it is not a string,
+     * its JSON source is returned), or failed with
+     * an {@link MpvException} if mpv reported an error, or an {@link IOException} if the connection was lost
+     * before the reply came.
+     */
+    public CompletableFuture<String> send(Object... command) {
+        long requestId = nextRequestId.getAndIncrement();
+        String json = mapping.writeValueAsString(ImmutableMap.of(
+                "command", ImmutableList.copyOf(command),
+                "request_id", requestId));
+        var result = new CompletableFuture<String>();
+        pending.put(requestId, result);
+        Runnable enqueue = () -> {
+            if (closed) {
+                fail(requestId, new ClosedChannelException());
+                return;
+            }
+            System.err.println("> " + json);
+            outbound.add(ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8)));
+            if (connected) {
+                flush();
+            }
+        };
+        if (loop.inLoop()) {
+            // queue it right away, so that commands sent by listener.connected() come first
+            enqueue.run();
+        } else {
+            loop.execute(enqueue);
+        }
+        return result;
+    }
+
+    /** Close the connection. Commands awaiting a reply are failed. */
+    public void close() {
+        loop.execute(() -> {
+            closed = true;
+            disconnect();
+        });
+    }
+
+    private void tryConnecting() {
+        if (closed) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                connectionEstablished();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, handler);
+            }
+        } catch (IOException e) {
+            // most likely mpv did not create its socket yet
+            closeChannel();
+            retryLater();
+        }
+    }
+
+    private void retryLater() {
+        loop.schedule(retryDelay, this::tryConnecting);
+        retryDelay = retryDelay.multipliedBy(2);
+        if (retryDelay.compareTo(MAX_RETRY) > 0) {
+            retryDelay = MAX_RETRY;
+        }
+    }
+
+    private void connectionEstablished() throws IOException {
+        connected = true;
+        retryDelay = FIRST_RETRY;
+        if (key == null) {
+            key = loop.register(channel, SelectionKey.OP_READ, handler);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        // let the listener set up the connection before sending anything else
+        Queue<ByteBuffer> queued = new ArrayDeque<>(outbound);
+        outbound.clear();
+        listener.connected();
+        // (unless the connection was lost again, in which case the queued commands have been failed)
+        if (connected) {
+            outbound.addAll(queued);
+            flush();
+        }
+    }
+
+    private final SelectorLoop.Handler handler = new SelectorLoop.Handler() {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connectionEstablished();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (connected) {
+                System.err.println((e instanceof IOException) ? e.getMessage() : e.toString());
+                disconnect();
+            } else {
+                closeChannel();
+                retryLater();
+            }
+        }
+    };
+
+    private void read() throws IOException {
+        if (channel.read(inbound) < 0) {
+            disconnect();
+            return;
+        }
+        inbound.flip();
+        decoder.decode(inbound);
+        inbound.compact();
+        if (!inbound.hasRemaining()) {
+            // a single line does not fit in the buffer: make it bigger
+            inbound = ByteBuffer.allocate(inbound.capacity() * 2).put(inbound.flip());
+        }
+    }
+
+    private void handleReply(long requestId, String error, String data) {
+        var future = pending.remove(requestId);
+        if (future == null) {
+            System.err.println("Unexpected reply to request " + requestId + ": " + error);
+        } else if ("success".equals(error)) {
+            future.complete(data);
+        } else {
+            future.completeExceptionally(new MpvException(error));
+        }
+    }
+
+    private void flush() {
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer head = outbound.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    // socket buffer is full: wait until we can write again
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.remove();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        boolean wasConnected = connected;
+        connected = false;
+        closeChannel();
+        outbound.clear();
+        inbound.clear();
+        for (var requestId : pending.keySet()) {
+            fail(requestId, new ClosedChannelException());
+        }
+        if (wasConnected) {
+            listener.disconnected();
+        }
+        if (!closed) {
+            // mpv may still be running (otherwise, whoever started it will close this client)
+            retryLater();
+        }
+    }
+
+    private void fail(long requestId, IOException e) {
+        var future = pending.remove(requestId);
+        if (future != null) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            channel = null;
+        }
+    }
+}
@@ -1,26 +1,21 @@
 package org.gamboni.mserver.tech.media;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.Setter;
-import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
 import org.gamboni.mserver.tech.Mapping;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.net.UnixDomainSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /** MPV support. */
+@Slf4j
 public class MpvMediaPlayer implements MediaPlayer {
     /* Design notes:
      * We treat mpv like a remote system, much like the browser sees the back end.
@@ -31,239 +26,332 @@ public class MpvMediaPlayer implements MediaPlayer {
      * or "stop". Inversely, the media player sends *events* to the controller, such as
      * "playing started (which includes total duration information)", "playback paused/resumed",
      * or "playback stopped" (either interrupted or reaching the end.
+     *
+     * A single mpv process is started in idle mode the first time something is played, and kept running
+     * for the lifetime of the server (it is only restarted if it dies).
+     * To avoid gaps between tracks, the head of the controller's queue (see setNext) is appended to mpv's own
+     * playlist, so that mpv can prefetch it and switch to it by itself. When that happens we still report
+     * the previous file as "stopped": the controller then dequeues that same file and asks us to play it,
+     * which we acknowledge without reloading anything (see `handover`).
      */
-    private static final String SOCKET = "/tmp/mserver";
-
+    /** Command starting mpv. May be changed, for instance to use a fake player in load tests: {@code mserver.mpv} is
+     * the executable, and {@code mserver.mpv.args} holds any arguments to pass before ours, one per line (so that
+     * they may contain spaces). */
+    private static final List<String> MPV_COMMAND = ImmutableList.<String>builder()
+            .add(System.getProperty("mserver.mpv", "mpv"))
+            .addAll(System.getProperty("mserver.mpv.args", "").lines()
+                    .filter(arg -> !arg.isEmpty())
+                    .toList())
+            .build();
+
+    private final Path socket;
     private final List<String> extraPlayerArgs;
     private final Mapping mapping;
 
     private volatile Optional<SocketClient> mpvClient = Optional.empty();
 
+    /* The following fields are guarded by 'this' */
+    /** True if mpv has nothing to play (or is not running at all). */
+    private boolean idle = true;
+    /** File we asked mpv to load, until mpv reports it actually started playing it. */
+    private Optional<File> loading = Optional.empty();
+    /** File mpv switched to on its own from its playlist, until the controller claims it through playIfIdle(). */
+    private Optional<File> handover = Optional.empty();
+    /** File currently in mpv's playlist after the one being played. */
+    private Optional<File> next = Optional.empty();
+
     @Setter
     private ChangeListener changeListener = ChangeListener.NOOP;
 
-    public MpvMediaPlayer(Mapping mapping, List<String> extraPlayerArgs) {
+    /**
+     * @param socket path of the IPC socket of the mpv process (which must be different for each player).
+     */
+    public MpvMediaPlayer(Mapping mapping, Path socket, List<String> extraPlayerArgs) {
         this.mapping = mapping;
+        this.socket = socket;
         this.extraPlayerArgs = ImmutableList.copyOf(extraPlayerArgs);
     }
 
     @Override
-    public void togglePaused() {
-        trySendMessage("{\"command\": [\"cycle\", \"pause\"]}");
+    public CompletableFuture<Void> togglePaused() {
+        return trySendMessage("cycle", "pause");
+    }
+
+    @Override
+    public CompletableFuture<Void> seek(double position) {
+        return trySendMessage("seek", position, "absolute");
     }
 
     @Override
-    public void stop() {
-        trySendMessage("{\"command\": [\"quit\"]}");
+    public synchronized CompletableFuture<Void> stop() {
+        // 'stop' (unlike 'quit') keeps mpv running: it just clears the playlist and goes back to idle mode,
+        // which we'll report as "stopped" once mpv confirms it.
+        next = Optional.empty();
+        return trySendMessage("stop");
     }
 
     @Override
     public synchronized void playIfIdle(File file, Runnable playingStarted, Runnable otherwise) {
-        /* Method is synchronized to prevent starting two players at the same time. */
-        if (isRunning()) {
-            otherwise.run();
-        } else {
-            ImmutableList<String> commandLine = ImmutableList.<String>builder()
-                    .add("mpv", "--input-ipc-server=" + SOCKET, "--vo=null")
-                    .addAll(extraPlayerArgs)
-                    .add(file.getPath())
-                    .build();
-
-            System.err.println("$ " + String.join(" ", commandLine));
-
-            try {
-                startStatusThread(Runtime.getRuntime().exec(
-                        commandLine.toArray(new String[0])));
-            } catch (IOException e) {
-                throw new RuntimeException("Error starting MPV", e);
+        /* Method is synchronized to prevent starting two files at the same time. */
+        if (handover.isPresent()) {
+            // mpv already moved on to the next entry of its playlist, and the controller is now catching up
+            if (!handover.get().equals(file)) {
+                // the controller changed its mind in the meantime (for instance the queue was modified)
+                load(file);
             }
+            handover = Optional.empty();
+            playingStarted.run();
+        } else if (idle) {
+            load(file);
             playingStarted.run();
+        } else {
+            otherwise.run();
         }
     }
 
-    /** Event object published by mpv. */
-    @ToString
-    static class MpvMessage {
-        public String event;
-        public Long id;
-        public String name;
-        public String data;
-        public String error;
-        public Long request_id;
+    @Override
+    public synchronized void setNext(Optional<File> file) {
+        if (handover.isPresent() || file.equals(next)) {
+            /* If a handover is pending, mpv's playlist already moved on and the controller is going to call
+             * playIfIdle() and then setNext() again, once it processes the "stopped" event. */
+            return;
+        }
+        next = file;
+        if (!idle) {
+            trySendMessage("playlist-clear");
+            file.ifPresent(f -> trySendMessage("loadfile", f.getPath(), "append"));
+        } // else: will be appended once something gets loaded
     }
 
-    private class SocketClient {
-        final Process process;
+    /** Replace whatever mpv is doing by playing the given file (followed by {@link #next}, if any). */
+    private void load(File file) {
+        SocketClient client = ensureRunning();
+        idle = false;
+        loading = Optional.of(file);
+        client.send("set_property", "pause", false);
+        client.send("loadfile", file.getPath(), "replace");
+        next.ifPresent(n -> client.send("loadfile", n.getPath(), "append"));
+    }
+
+    private SocketClient ensureRunning() {
+        Optional<SocketClient> existing = this.mpvClient;
+        if (existing.isPresent() && existing.get().process.isAlive()) {
+            return existing.get();
+        }
+
+        ImmutableList<String> commandLine = ImmutableList.<String>builder()
+                .addAll(MPV_COMMAND)
+                .add("--input-ipc-server=" + socket, "--vo=null", "--idle=yes", "--prefetch-playlist=yes")
+                .addAll(extraPlayerArgs)
+                .build();
+
+        System.err.println("$ " + String.join(" ", commandLine));
 
-        SocketChannel mpvSocket;
-        BufferedReader reader;
+        try {
+            // no need to wait for mpv to be ready: commands are queued until the socket is connected
+            return startProcess(Runtime.getRuntime().exec(
+                    commandLine.toArray(new String[0])));
+        } catch (IOException e) {
+            throw new RuntimeException("Error starting MPV", e);
+        }
+    }
+
+    /** Called when mpv reports the file being played changed. */
+    private void fileStarted(File file) {
+        boolean skippedAhead;
+        synchronized (this) {
+            if (loading.isPresent() && loading.get().equals(file)) {
+                // started as requested by the controller, nothing to report
+                loading = Optional.empty();
+                skippedAhead = false;
+            } else if (idle) {
+                // should not happen: something we don't know about
+                skippedAhead = false;
+            } else {
+                // mpv switched to the next entry of its playlist by itself
+                handover = Optional.of(file);
+                next = Optional.empty();
+                skippedAhead = true;
+            }
+        }
+        if (skippedAhead) {
+            changeListener.stopped();
+        }
+    }
+
+    /** Called when mpv reports it has nothing to play, or when it terminated. */
+    private void playerIdle() {
+        boolean wasIdle;
+        synchronized (this) {
+            wasIdle = idle;
+            idle = true;
+            loading = Optional.empty();
+            handover = Optional.empty();
+            next = Optional.empty();
+        }
+        if (!wasIdle) {
+            changeListener.stopped();
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /** Tracks the state of one mpv process, as reported through its IPC socket. */
+    private class SocketClient implements MpvIpcClient.Listener {
+        /* Property ids (these are chosen by us, and only need to be unique within one connection) */
+        private static final int DURATION_PROPERTY = 1;
+        private static final int POSITION_PROPERTY = 2;
+        private static final int PAUSED_PROPERTY = 3;
+        private static final int PATH_PROPERTY = 4;
+        private static final int IDLE_PROPERTY = 5;
+
+        final Process process;
+        final MpvIpcClient ipc;
+        final long startedNanos = System.nanoTime();
 
-        long nextRequestId = 1;
-        Long durationProperty;
-        Long positionProperty;
-        Long pausedProperty;
+        /* The following fields are only accessed from the selector thread */
+        /** Last reported value of the idle-active property, or null until mpv sends its initial value. */
+        Boolean idleActive = null;
         double duration = 0;
         double position = 0;
         boolean paused = false;
 
         private SocketClient(Process process) {
             this.process = process;
+            this.ipc = new MpvIpcClient(socket, mapping, this);
+            ipc.connect();
         }
 
-        private boolean isConnected() {
-            return reader != null;
+        private void observe(int id, String property) {
+            send("observe_property", id, property);
         }
 
-        /** Try connecting to the MPV socket. This command may only be used when we're not connected. */
-        public boolean tryConnecting() {
-            try {
-                this.mpvSocket = openMpvSocketConnection();
-                this.reader = openReader(mpvSocket);
-                init(); // if above was successful…
-                return true;
-            } catch (IOException e) {
-                return false;
-            }
-        }
+        @Override
+        public void connected() {
+            System.err.println("Connected to mpv after " +
+                    Duration.ofNanos(System.nanoTime() - startedNanos).toMillis() + "ms");
 
-        private void init() throws IOException {
+            // Observations only last as long as the connection, so this is done again after reconnecting.
+            // Commands sent from here go before anything else.
             // Duration is not supposed to change, but I've sometimes seen it being null when querying too soon,
             // so we "observe" it to be sure we eventually get the correct value.
-            durationProperty = (nextRequestId++);
-            write("{\"command\":[\"observe_property_string\", "+ durationProperty +", \"duration\"]}");
-
-            positionProperty = (nextRequestId++);
-            write("{\"command\":[\"observe_property_string\", "+ positionProperty +", \"playback-time\"]}");
+            observe(DURATION_PROPERTY, "duration");
+            observe(POSITION_PROPERTY, "playback-time");
+            observe(PAUSED_PROPERTY, "pause");
+            observe(PATH_PROPERTY, "path");
+            observe(IDLE_PROPERTY, "idle-active");
+        }
 
-            pausedProperty = (nextRequestId++);
-            write("{\"command\":[\"observe_property_string\", "+ pausedProperty +", \"pause\"]}");
+        @Override
+        public void disconnected() {
+            // nothing to do: if mpv is gone we'll find out when the process terminates
         }
 
-        /** Wait for the next event coming from MPV. This command may only be used when the client is connected. */
-        public boolean poll() throws IOException {
-            String line = null;
-            try {
-                line = reader.readLine(); // blocking
-            } catch (IOException ioX) {
-                System.err.println(ioX.getMessage());
+        @Override
+        public void property(int id, double value) {
+            switch (id) {
+                case POSITION_PROPERTY -> position = value * 1000;
+                case DURATION_PROPERTY -> duration = value * 1000;
+                default -> {
+                    System.err.println("Unexpected value for property " + id + ": " + value);
+                    return;
+                }
             }
-            if (line == null) {
-                synchronized (this) { // required before clearing 'reader' to avoid race with write()
-                    mpvSocket = tryClose(mpvSocket);
-                    reader = tryClose(reader);
+            report();
+        }
+
+        @Override
+        public void property(int id, boolean value) {
+            switch (id) {
+                case PAUSED_PROPERTY -> {
+                    paused = value;
+                    report();
                 }
-                return false;
+                case IDLE_PROPERTY -> {
+                    // only react to transitions: the initial value may arrive after we already sent a loadfile
+                    if (Boolean.FALSE.equals(idleActive) && value) {
+                        playerIdle();
+                    }
+                    idleActive = value;
+                }
+                default -> System.err.println("Unexpected value for property " + id + ": " + value);
             }
-					/* example messages:
-
-					{"event":"property-change","id":1,"name":"playback-time","data":39.040266}
-					{"request_id":0,"error":"invalid parameter"}
-					{"data":"374.955828","request_id":12,"error":"success"}
-					 */
-            var message = mapping.readValue(line, MpvMessage.class);
-            if (positionProperty.equals(message.id)) {
-                position = (message.data == null) ? 0 : Double.parseDouble(message.data) * 1000;
-            } else if (durationProperty.equals(message.id)) {
-                duration = (message.data == null) ? 0 : Double.parseDouble(message.data) * 1000;
-            } else if (pausedProperty.equals(message.id)) {
-                paused = message.data.equals("yes");
+        }
+
+        @Override
+        public void property(int id, String value) {
+            if (id == PATH_PROPERTY) {
+                fileStarted(new File(value));
             } else {
-                System.err.println(line);
-                return true;
+                System.err.println("Unexpected value for property " + id + ": " + value);
             }
+        }
+
+        @Override
+        public void propertyUnavailable(int id) {
+            switch (id) {
+                case POSITION_PROPERTY -> position = 0;
+                case DURATION_PROPERTY -> duration = 0;
+                // path becomes unavailable while switching files: only the new value is interesting
+                default -> {}
+            }
+        }
 
-            if (paused) {
+        @Override
+        public void event(String name) {
+            // other events are not needed, as we observe properties instead
+        }
+
+        private void report() {
+            if (isIdle()) {
+                // properties keep their last values (or get reset) when there's nothing playing: don't report them
+            } else if (paused) {
                 changeListener.paused(position);
             } else {
                 changeListener.playing(
                         Instant.now().minusMillis((long) position),
                         duration);
             }
-
-            return true;
         }
 
-        void close() {
-            tryClose(mpvSocket);
-            mpvSocket = null;
-            reader = null;
+        /** Send a command, logging how long mpv took to acknowledge it (at debug level, unless it failed). */
+        CompletableFuture<Void> send(Object... command) {
+            long sent = System.nanoTime();
+            return ipc.send(command)
+                    .whenComplete((result, error) -> {
+                        long millis = Duration.ofNanos(System.nanoTime() - sent).toMillis();
+                        if (error == null) {
+                            log.debug("< {} acknowledged after {}ms", command[0], millis);
+                        } else {
+                            log.warn("< {} failed after {}ms: {}", command[0], millis, error.getMessage());
+                        }
+                    })
+                    .thenApply(__ -> null);
         }
-
-        private synchronized void write(String string) throws IOException {
-            SocketChannel copy = mpvSocket;
-            if (copy != null) {
-                System.err.println("> " + string);
-                mpvSocket.write(ByteBuffer.wrap((string + "\n").getBytes(StandardCharsets.UTF_8)));
-            }
-        }
-    }
-
-    private static SocketChannel openMpvSocketConnection() throws IOException {
-        return SocketChannel.open(UnixDomainSocketAddress.of(SOCKET));
     }
 
-    private void startStatusThread(Process mpvProcess) {
+    private SocketClient startProcess(Process mpvProcess) {
         var client = new SocketClient(mpvProcess);
         this.mpvClient = Optional.of(client);
-        new Thread(() -> {
-            try {
-                client.init();
-                while (mpvProcess.isAlive()) {
-                    boolean ok;
-                    if (client.isConnected()) {
-                        ok = client.poll();
-                    } else {
-                        ok = client.tryConnecting();
-                    }
-                    if (!ok) {
-                        // either lost connection (probably mpv is shutting down)
-                        // or could not connect (probably mpv is starting up): wait a bit and try again
-                        Uninterruptibles.sleepUninterruptibly(Duration.ofMillis(500));
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                client.close();
-                mpvClient = Optional.empty();
-                changeListener.stopped();
-            }
-        }).start();
-    }
-
-    private boolean isRunning() {
-        return mpvClient.isPresent();
+        mpvProcess.onExit().thenRun(() -> {
+            client.ipc.close();
+            mpvClient = Optional.empty();
+            playerIdle();
+        });
+        return client;
     }
 
     /**
-     * Pass the MPV Process, if available, to the given consumer.
+     * Send the given command to the running MPV process, if any.
+     *
+     * @return a future completed when mpv acknowledged the command.
      */
-    private void trySendMessage(String message) {
-        Optional<SocketClient> copy = this.mpvClient;
-        if (copy.isPresent()) {
-            try {
-                copy.get().write(message);
-            } catch (IOException e) {
-                // Would this happen if mpv has just finished? In that case maybe we should resend the command
-                // To the next instance from the queue (if any)? E.g. clicking "pause" between two runs
-                // should probably pause the newly started instance instead of crashing / doing nothing.
-            }
-        }
-    }
-
-    private static BufferedReader openReader(SocketChannel channel) {
-        return new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+    private CompletableFuture<Void> trySendMessage(Object... command) {
+        return this.mpvClient
+                .map(client -> client.send(command))
+                .orElseGet(() -> CompletableFuture.failedFuture(
+                        new IllegalStateException("mpv is not running")));
     }
-
-    private static <T extends Closeable> T tryClose(T resource) {
-        try {
-            if (resource != null) {
-                resource.close();
-            } // else: resource was already closed, so do nothing
-        } catch (IOException e) {
-            // ignore
-        }
-        return null;
-    }
-
 }
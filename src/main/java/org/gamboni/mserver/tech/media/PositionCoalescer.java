@@ -0,0 +1,92 @@
+package org.gamboni.mserver.tech.media;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/** A {@link MediaPlayer.ChangeListener} filtering out redundant position updates before they reach another listener.
+ *
+ * <p>mpv reports the playback position many times per second. While playing normally, the start time extrapolated
+ * from each position stays the same (modulo a few milliseconds of jitter), so those updates carry no information.
+ * This class only forwards an update if the play state or duration changed, or if the extrapolated start time (or
+ * the paused position) drifted by more than a given threshold, for instance after seeking.</p>
+ */
+public class PositionCoalescer implements MediaPlayer.ChangeListener {
+
+    private enum State { STOPPED, PLAYING, PAUSED }
+
+    private final MediaPlayer.ChangeListener downstream;
+    private final long thresholdMillis;
+
+    /* Last state forwarded downstream */
+    private State state = State.STOPPED;
+    private double duration = 0;
+    /** Start time when PLAYING, position when PAUSED. */
+    private long millis = 0;
+
+    private long forwarded = 0;
+    private long dropped = 0;
+
+    public PositionCoalescer(MediaPlayer.ChangeListener downstream, Duration threshold) {
+        this.downstream = downstream;
+        this.thresholdMillis = threshold.toMillis();
+    }
+
+    @Override
+    public void stopped() {
+        synchronized (this) {
+            state = State.STOPPED;
+            forwarded++;
+        }
+        downstream.stopped();
+    }
+
+    @Override
+    public void playing(Instant started, double duration) {
+        if (accept(State.PLAYING, started.toEpochMilli(), duration)) {
+            downstream.playing(started, duration);
+        }
+    }
+
+    @Override
+    public void paused(double position) {
+        boolean forward;
+        synchronized (this) {
+            // a paused position does not change by itself, so compare it like a start time.
+            // (paused updates carry no duration: keep the last one)
+            forward = accept(State.PAUSED, (long) position, duration);
+        }
+        if (forward) {
+            downstream.paused(position);
+        }
+    }
+
+    /** Decide whether to forward the given update, and if so remember it as the last forwarded state. */
+    private synchronized boolean accept(State newState, long newMillis, double newDuration) {
+        if (newState == state &&
+                newDuration == duration &&
+                Math.abs(newMillis - millis) <= thresholdMillis) {
+            dropped++;
+            return false;
+        }
+        state = newState;
+        millis = newMillis;
+        duration = newDuration;
+        forwarded++;
+        return true;
+    }
+
+    /** Number of updates passed on to the downstream listener. */
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    /** Number of updates that were considered redundant and not passed on. */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Position updates: " + forwarded + " forwarded, " + dropped + " dropped";
+    }
+}
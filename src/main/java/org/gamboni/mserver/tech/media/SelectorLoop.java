@@ -0,0 +1,129 @@
+package org.gamboni.mserver.tech.media;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** A single thread multiplexing all non-blocking channels (currently, connections to media players).
+ * Handlers and tasks are all run on that thread, so they must never block.
+ */
+@Slf4j
+final class SelectorLoop {
+
+    private static final SelectorLoop INSTANCE = new SelectorLoop();
+
+    static SelectorLoop get() {
+        return INSTANCE;
+    }
+
+    /** Callback for channels registered with this loop. */
+    interface Handler {
+        /** Called when the channel is ready for some of its registered operations. */
+        void ready(SelectionKey key) throws IOException;
+
+        /** Called when {@link #ready} threw an exception (including unexpected runtime exceptions). The channel has
+         * already been deregistered. */
+        void failed(Exception e);
+    }
+
+    private record Timer(long deadline, Runnable task) {}
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** Only accessed from the loop thread. */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+    private SelectorLoop() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.thread = new Thread(this::run, "selector-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** True if called from the loop thread (for instance, from a handler or a task). */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Run the given task on the loop thread. May be called from any thread. */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Run the given task on the loop thread after the given delay. May be called from any thread. */
+    void schedule(Duration delay, Runnable task) {
+        long deadline = System.nanoTime() + delay.toNanos();
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    /** Register a channel with this loop. Must be called from the loop thread. */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Timer first = timers.peek();
+                if (first == null) {
+                    selector.select();
+                } else {
+                    long millis = (first.deadline() - System.nanoTime()) / 1_000_000;
+                    if (millis > 0) {
+                        selector.select(millis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                for (var key : selector.selectedKeys()) {
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.ready(key);
+                    } catch (IOException | RuntimeException e) {
+                        key.cancel();
+                        runSafely(() -> handler.failed(e));
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+                    runSafely(timers.poll().task());
+                }
+            } catch (Exception e) {
+                // keep the loop running whatever happens, as all players depend on it
+                log.error("Unexpected error in selector loop", e);
+            }
+        }
+    }
+
+    /** Run a task, so that a failing one doesn't prevent others from running. */
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.error("Unexpected error in selector loop task", e);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.collect.Iterables;
 import org.gamboni.mserver.DirectorySnapshot;
 import org.gamboni.mserver.DirectorySnapshot.ItemSnapshot;
 import org.gamboni.mserver.MServerController;
+import org.gamboni.mserver.Zone;
 import org.gamboni.mserver.data.*;
 import org.gamboni.mserver.tech.Mapping;
 import org.gamboni.mserver.tech.SparkDynamicPage;
@@ -12,6 +13,7 @@ import org.gamboni.tech.history.Stamped;
 import org.gamboni.tech.history.ui.EnumViewElementTemplate;
 import org.gamboni.tech.web.js.JavaScript;
 import org.gamboni.tech.web.js.JsType;
+import org.gamboni.tech.web.ui.Element;
 import org.gamboni.tech.web.ui.FavIconResource;
 import org.gamboni.tech.web.ui.Html;
 import org.gamboni.tech.web.ui.IdentifiedElementRenderer;
@@ -19,7 +21,12 @@ import org.gamboni.tech.web.ui.value.DateValue;
 import org.gamboni.tech.web.ui.value.Value;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.function.Function;
 
 import static org.gamboni.mserver.data.PlayState.PAUSED;
@@ -28,7 +35,13 @@ import static org.gamboni.mserver.data.PlayState.STOPPED;
 import static org.gamboni.tech.web.js.JavaScript.JsExpression;
 import static org.gamboni.tech.web.js.JavaScript.JsHtmlElement;
 import static org.gamboni.tech.web.js.JavaScript.JsStatement;
+import static org.gamboni.tech.web.js.JavaScript._if;
+import static org.gamboni.tech.web.js.JavaScript.getElementById;
+import static org.gamboni.tech.web.js.JavaScript.lambda;
+import static org.gamboni.tech.web.js.JavaScript.let;
 import static org.gamboni.tech.web.js.JavaScript.literal;
+import static org.gamboni.tech.web.js.JavaScript.newXMLHttpRequest;
+import static org.gamboni.tech.web.js.JavaScript.seq;
 import static org.gamboni.tech.web.ui.Html.attribute;
 import static org.gamboni.tech.web.ui.Html.escape;
 
@@ -37,7 +50,14 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
     private final IdentifiedElementRenderer<ItemSnapshot> itemTemplate;
 
     // TODO see if we can put all the information in DirectorySnapshot?
-    public record Data(DirectorySnapshot snapshot, File folder, Iterable<ItemSnapshot> files, GlobalState globalState) implements Stamped {
+    /**
+     * @param more if present, the page shows only the first items and this is the URL of the following ones (see
+     * {@link #writeItems}).
+     * @param directories if present, the page shows files of these directories (search results), rather than the
+     * contents of {@code folder}.
+     */
+    public record Data(DirectorySnapshot snapshot, File folder, Iterable<ItemSnapshot> files, GlobalState globalState,
+                       Optional<String> more, Optional<List<File>> directories) implements Stamped {
         @Override
         public long stamp() {
             return snapshot.stamp();
@@ -45,13 +65,32 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
     }
 
     private final MServerController controller;
+    private final Mapping mapping;
     private final Style style;
+    /** Prepended to URLs of pages of the zone this page is for. */
+    private final String prefix;
+    private final String zone;
+    /** All zones, to switch between them. */
+    private final List<Zone> zones;
 
     public final IdentifiedElementRenderer<PlayState> status;
     private final /*TimeBasedTemplate*/ IdentifiedElementRenderer<JsType<? extends GlobalState>> progress;
 
     private final JavaScript.JsGlobal playState = new JavaScript.JsGlobal("playState");
     private final JavaScript.JsGlobal directory = new JavaScript.JsGlobal("directory");
+    /** Directories of the files on a search page, or null on a directory page. */
+    private final JavaScript.JsGlobal directories = new JavaScript.JsGlobal("directories");
+    private final JavaScript.Fun search = new JavaScript.Fun("search");
+    private final JavaScript.Fun loadMore = new JavaScript.Fun("loadMore");
+
+    /** Id of the list holding the items. */
+    private static final String ITEMS_ID = "items";
+    /** Id of the image marking the end of the loaded items. */
+    private static final String MORE_ID = "more";
+    /** Response header giving the URL of the items following the ones in the response. */
+    public static final String NEXT_HEADER = "X-Next";
+    /** Stands for the items when streaming a page. */
+    private static final String PLACEHOLDER = "items-" + UUID.randomUUID();
 
     private JsStatement setProgressBarPercent(JsHtmlElement bar, JsExpression value) {
         return bar.style().dot("width")
@@ -71,9 +110,13 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
         }
     };
 
-    public DirectoryPage(MServerController controller, Mapping mapping, Style style) {
+    public DirectoryPage(MServerController controller, Mapping mapping, Style style, List<Zone> zones) {
         this.controller = controller;
+        this.mapping = mapping;
         this.style = style;
+        this.prefix = controller.getZone().prefix();
+        this.zone = controller.getZone().name();
+        this.zones = zones;
         this.status = EnumViewElementTemplate
                 .<PlayState, PlayState>ofStaticBase(PlayState.class, __ -> Value.of("global"), Value::of,
                     p())
@@ -95,7 +138,8 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
                             if (item.isDirectory()) {
                                 return a(
                                         style.itemBody,
-                                        "./" + item.name() + "/",
+                                        // absolute, as search results come from many directories
+                                        prefix + "/browse" + mapping.fileToPath(item.file()) + "/",
                                         span(style.label,
                                                 escape(item.friendlyName())),
                                         thumb(item));
@@ -134,25 +178,79 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
 
         controller.addTo(this);
         addToScript(
-                directory.declare(literal(""))/*,
+                directory.declare(literal("")),
+                search.declare(
+                        let(JavaScript.invoke(new JavaScript.JsGlobal("prompt"), literal("Search")),
+                                query -> _if(query,
+                                        new JavaScript.JsGlobal("location").dot("href").set(
+                                                literal(prefix + "/search?q=").plus(JavaScript.invoke(
+                                                        new JavaScript.JsGlobal("encodeURIComponent"),
+                                                        query)))))),
+                /* Called when the end of the list comes into view (or close to it), thanks to the sentinel image being
+                 * lazily loaded: fetch the next items, then point the sentinel to the URL of the following ones, if
+                 * any. The sentinel then reloads, and calls this function again, when it comes into view again. */
+                loadMore.declare(
+                        let(getElementById(literal(MORE_ID)), sentinel ->
+                                let(newXMLHttpRequest(), r -> seq(
+                                        r.dot("onload").set(lambda(
+                                                seq(
+                                                        getElementById(literal(ITEMS_ID)).invoke("insertAdjacentHTML",
+                                                                literal("beforeend"),
+                                                                r.dot("responseText")),
+                                                        let(r.invoke("getResponseHeader", literal(NEXT_HEADER)), next ->
+                                                                _if(next, seq(
+                                                                        sentinel.dot("dataset").dot("next").set(next),
+                                                                        sentinel.dot("src").set(
+                                                                                literal("/favicon.png?").plus(next)))))))),
+                                        r.invoke("open",
+                                                literal("GET"),
+                                                sentinel.dot("dataset").dot("next"),
+                                                literal(true)),
+                                        r.invoke("send", literal(""))))))/*,
                 playState.declare(FrontEndStateValues.literal(
                         literal(STOPPED),
                         literal(0),
                         literal(0),
                         literal(0)))*/);
 
-        addToOnLoad(onLoad ->
+        addToOnLoad(onLoad -> seq(
                 directory.set(
                         onLoad.addParameter(data ->
-                                literal(mapping.fileToPath(data.folder)))));
+                                literal(mapping.fileToPath(data.folder)))),
+                directories.set(
+                        onLoad.addParameter(data ->
+                                new JavaScript.JsGlobal("JSON").invoke("parse",
+                                        literal(mapping.writeValueAsString(data.directories.orElse(null))))))));
     }
 
     @Override
     protected JsExpression helloValue(JsExpression stamp) {
-        return GetStatusValues.literal(directory, stamp);
+        return GetStatusValues.literal(directory, stamp, literal(zone), directories);
     }
 
     public Html render(Data data) {
+        return render(data, itemList(data.files));
+    }
+
+    /** Write the page for the given data, flushing as soon as the controls at the top are written (so that the
+     * browser can display them while items are still being rendered). Items are rendered one by one, so that a big
+     * folder never has to be held in memory as a whole.
+     */
+    public void render(Data data, Writer out) throws IOException {
+        // render the page around a placeholder item, and replace that item with the actual ones
+        String skeleton = render(data, ul(style.grid, List.of(PLACEHOLDER), style.item, Html::escape)).toString();
+        int placeholder = skeleton.indexOf(PLACEHOLDER);
+        int itemsStart = skeleton.lastIndexOf("<li", placeholder);
+        int itemsEnd = skeleton.indexOf("</li>", placeholder) + "</li>".length();
+
+        out.write(skeleton, 0, itemsStart);
+        out.flush();
+        writeItems(data.files, out);
+        out.write(skeleton, itemsEnd, skeleton.length() - itemsEnd);
+        out.flush();
+    }
+
+    private Html render(Data data, Element items) {
         return html(data, List.of(style, new FavIconResource("favicon.png", "image/png")), List.of(
                         div(List.of(style.top),
                                 p(
@@ -160,25 +258,71 @@ public class DirectoryPage extends SparkDynamicPage<DirectoryPage.Data> {
                                         escape(" "),
                                         button("Skip", controller.skip),
                                         escape(" "),
-                                        button("Stop", controller.stop)),
+                                        button("Stop", controller.stop),
+                                        escape(" "),
+                                        button("Search", search.invoke())),
+                                zoneLinks(data.folder()),
                                 status.render(PLAY_STATE_FUNCTION.apply(
                                         data.globalState().getClass())),
                                 div(List.of(style.progressBar),
                                         progress.render(GlobalStateValues.of(data.globalState())    ))),
-                        ul(style.grid,
-                                Iterables.filter(
-                                data.files,
-                                        f -> f.item().isDirectory() || f.item().isMusic()),
-                                style.item,
-                                itemTemplate::render)
+                        items.withAttribute(attribute("id", ITEMS_ID)),
+                        data.more()
+                                .map(this::sentinel)
+                                .orElse(Html.EMPTY)
                 )
         );
     }
 
+    /** Write some items as a sequence of list items, to be appended to the list of a page rendered earlier. */
+    public void writeItems(Iterable<ItemSnapshot> items, Writer out) throws IOException {
+        for (var item : items) {
+            String list = itemList(List.of(item)).toString();
+            // strip the <ul> element, keeping only its contents
+            int start = list.indexOf('>') + 1;
+            out.write(list, start, list.lastIndexOf("</ul>") - start);
+        }
+    }
+
+    private Element itemList(Iterable<ItemSnapshot> items) {
+        return ul(style.grid,
+                Iterables.filter(
+                        items,
+                        f -> f.item().isDirectory() || f.item().isMusic()),
+                style.item,
+                itemTemplate::render);
+    }
+
+    /** Links to the same folder in the other zones, if there are any. */
+    private Html zoneLinks(File folder) {
+        if (zones.size() < 2) {
+            return Html.EMPTY;
+        }
+        List<Html> links = new ArrayList<>();
+        for (var other : zones) {
+            if (other.name().equals(zone)) {
+                links.add(escape(other.name()));
+            } else {
+                links.add(a(style.zone, other.prefix() + "/browse" + mapping.fileToPath(folder) + "/",
+                        escape(other.name())));
+            }
+            links.add(escape(" "));
+        }
+        return p(links.toArray(Html[]::new));
+    }
+
+    /** An image which, being lazily loaded, triggers loading the items at the given URL when it comes into view. */
+    private Html sentinel(String url) {
+        return img(style.more, "/favicon.png")
+                .withAttribute(attribute("id", MORE_ID))
+                .withAttribute(attribute("loading", "lazy"))
+                .withAttribute(attribute("data-next", url))
+                .withAttribute(attribute("onload", loadMore.invoke()));
+    }
+
     private Html thumb(ItemSnapshot item) {
-        File thumbPath = new File(item.file() +".jpeg");
-        if (thumbPath.exists()) {
-            return img(style.thumb, ("./"+ item.name() +".jpeg"));
+        if (item.hasArt()) {
+            return img(style.thumb, (prefix + "/browse" + mapping.fileToPath(item.file()) + ".jpeg"));
         } else {
             return Html.EMPTY;
         }
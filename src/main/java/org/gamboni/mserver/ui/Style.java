@@ -12,6 +12,8 @@ public class Style extends SparkStyle {
     public ClassName itemBody;
     public ClassName label;
     public ClassName thumb;
+    public ClassName more;
+    public ClassName zone;
 
     private static final String topHeight = "6em";
     public static final EnumToClassName<PlayState> states = new OneCssClassPerEnumValue<>(PlayState.class);
@@ -81,6 +83,13 @@ public class Style extends SparkStyle {
                         a.left("0"),
                         a.maxWidth("100%"))
                 +
-                rule(grid, a.marginTop(topHeight));
+                rule(grid, a.marginTop(topHeight))
+                +
+                rule(more,
+                        a.width("1px"),
+                        a.height("1px"))
+                +
+                rule(zone,
+                        a.margin("0 0.5em"));
     }
 }
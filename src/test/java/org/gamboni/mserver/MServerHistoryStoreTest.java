@@ -0,0 +1,88 @@
+package org.gamboni.mserver;
+
+import org.gamboni.mserver.library.DirectoryListingCache;
+import org.gamboni.mserver.tech.Mapping;
+import org.gamboni.tech.web.ws.BroadcastTarget;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MServerHistoryStoreTest {
+    @TempDir
+    Path music;
+    @TempDir
+    Path data;
+
+    private MServerHistoryStore store;
+    private File directory;
+
+    @BeforeEach
+    void createStore() {
+        store = new MServerHistoryStore(new Mapping(music.toFile()), new DirectoryListingCache(),
+                new HistoryLog(data.resolve("history.log")));
+        directory = music.resolve("album").toFile();
+    }
+
+    @Test
+    void disconnectedClientIsForgotten() {
+        BroadcastTarget client = client();
+        List<BroadcastTarget> disconnected = new ArrayList<>();
+        store.onDisconnect(disconnected::add);
+
+        store.addListener(client, directory, 0);
+        assertTrue(store.getClients().contains(client));
+        assertTrue(store.directoryState(directory).getClients().contains(client));
+
+        store.removeListener(client);
+        assertFalse(store.getClients().contains(client));
+        assertFalse(store.directoryState(directory).getClients().contains(client));
+        assertEquals(List.of(client), disconnected);
+    }
+
+    @Test
+    void otherClientsStayConnected() {
+        BroadcastTarget leaving = client();
+        BroadcastTarget staying = client();
+        store.addListener(leaving, directory, 0);
+        store.addListener(staying, directory, 0);
+
+        store.removeListener(leaving);
+        assertEquals(List.of(staying), List.copyOf(store.getClients()));
+        assertEquals(List.of(staying), List.copyOf(store.directoryState(directory).getClients()));
+    }
+
+    @Test
+    void disconnectedClientIsNotRegisteredAgain() {
+        BroadcastTarget client = client();
+        store.addListener(client, directory, 0);
+        store.removeListener(client);
+
+        // catching up a client that disconnected in the meantime
+        assertEquals(List.of(), store.setDirectories(client, List.of(directory), 0));
+        assertFalse(store.getClients().contains(client));
+        assertFalse(store.directoryState(directory).getClients().contains(client));
+    }
+
+    /** A client discarding everything it is sent. The web socket library implements BroadcastTarget: a proxy stands
+     * in for it, so that this does not depend on its other methods. */
+    private static BroadcastTarget client() {
+        return (BroadcastTarget) Proxy.newProxyInstance(BroadcastTarget.class.getClassLoader(),
+                new Class<?>[]{BroadcastTarget.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "client@" + Integer.toHexString(System.identityHashCode(proxy));
+                    default -> null;
+                });
+    }
+}
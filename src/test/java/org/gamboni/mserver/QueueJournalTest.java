@@ -0,0 +1,62 @@
+package org.gamboni.mserver;
+
+import org.gamboni.mserver.data.PausedGlobalState;
+import org.gamboni.mserver.tech.Mapping;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QueueJournalTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    Path music;
+    @TempDir
+    Path data;
+    @TempDir
+    Path copy;
+
+    @Test
+    void pausedPositionSurvivesRestart() throws Exception {
+        Mapping mapping = new Mapping(music.toFile());
+        File file = music.resolve("album/track.mp3").toFile();
+        QueueJournal journal = new QueueJournal(mapping, data, "zone");
+        journal.recover();
+
+        journal.playing(file);
+        // as saved by the controller when the player is paused 83.5 seconds into a 3 minute file
+        MServerController.positionSeconds(new PausedGlobalState(83_500, 180_000), Instant.now())
+                .ifPresent(journal::position);
+
+        QueueJournal.State recovered = recoverWhenSaved(mapping, 83.5);
+        assertEquals(Optional.of(file), recovered.playing());
+        assertEquals(83.5, recovered.position());
+    }
+
+    /** Recover a copy of the journal, so as not to disturb its writer, until it holds the given position (changes are
+     * written in the background). */
+    private QueueJournal.State recoverWhenSaved(Mapping mapping, double position)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            for (String name : List.of("zone.snapshot", "zone.journal")) {
+                Files.copy(data.resolve(name), copy.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            }
+            QueueJournal.State state = new QueueJournal(mapping, copy, "zone").recover();
+            if (state.position() == position || System.currentTimeMillis() > deadline) {
+                return state;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
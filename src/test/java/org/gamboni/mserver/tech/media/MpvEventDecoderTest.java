@@ -0,0 +1,180 @@
+package org.gamboni.mserver.tech.media;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MpvEventDecoderTest {
+    /** Everything the decoder reported, as text. */
+    private final List<String> received = new ArrayList<>();
+    /** Numeric property values, as they were reported. */
+    private final List<Double> numbers = new ArrayList<>();
+
+    private final MpvEventDecoder decoder = new MpvEventDecoder(new MpvEventDecoder.EventHandler() {
+        @Override
+        public void property(int id, double value) {
+            numbers.add(value);
+            received.add("property " + id + " = " + value);
+        }
+
+        @Override
+        public void property(int id, boolean value) {
+            received.add("property " + id + " = " + value);
+        }
+
+        @Override
+        public void property(int id, String value) {
+            received.add("property " + id + " = \"" + value + "\"");
+        }
+
+        @Override
+        public void propertyUnavailable(int id) {
+            received.add("property " + id + " unavailable");
+        }
+
+        @Override
+        public void event(String name) {
+            received.add("event " + name);
+        }
+    }, (requestId, error, data) -> received.add("reply " + requestId + " " + error + " " + data));
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0", "42", "39.040266", "374.955828", "1e3", "1E3", "1.5e+2", "2e-2", "-0.5E1",
+            "0.05", "-0.25", "-0.000123", "0.00001", "123456789012345", "9007199254740993"})
+    void shortNumbersAreCorrectlyRounded(String number) {
+        assertEquals(Double.parseDouble(number), property(number));
+    }
+
+    /** Beyond 18 significant digits, digits only scale the value. */
+    @ParameterizedTest
+    @ValueSource(strings = {"123456789012345678999", "0.123456789012345678999", "12345678901234567890123",
+            "1234567890.123456789012345", "-98765432109876543210.5", "0.000000000000000000001234",
+            "1.23456789012345678901e-30", "6.02214076e23", "1e-300", "1.7e308"})
+    void longNumbersAreWithinAFewUlps(String number) {
+        double expected = Double.parseDouble(number);
+        assertEquals(expected, property(number), 4 * Math.ulp(expected));
+    }
+
+    @Test
+    void decodesValuesOfEachType() {
+        decode("""
+                {"event":"property-change","id":1,"name":"playback-time","data":39.040266}
+                {"event":"property-change","id":3,"name":"pause","data":false}
+                {"event":"property-change","id":4,"name":"path","data":"/srv/music/Vivaldi/01. Spring.ogg"}
+                {"event":"property-change","id":4,"name":"path"}
+                {"event":"property-change","id":2,"name":"duration","data":null}
+                {"event":"property-change","id":5,"name":"metadata","data":{"title":"}"}}
+                {"event":"start-file","playlist_entry_id":2}
+                """);
+        assertEquals(List.of(
+                "property 1 = 39.040266",
+                "property 3 = false",
+                "property 4 = \"/srv/music/Vivaldi/01. Spring.ogg\"",
+                "property 4 unavailable",
+                "property 2 unavailable",
+                "event start-file"), received);
+    }
+
+    @Test
+    void decodesEscapes() {
+        decode("""
+                {"event":"property-change","id":1,"data":"a\\\\b\\"c\\/d\\n\\t\\u00e9\\u20AC"}
+                {"event":"property-change","id":1,"data":"\\ud83c\\udfb5 surrogate pair"}
+                {"event":"property-change","id":1,"data":"lone \\ud83c high"}
+                {"event":"property-change","id":1,"data":"lone \\udfb5 low"}
+                {"event":"property-change","id":1,"data":"high \\ud83c\\u0041 then not low"}
+                {"event":"property-change","id":1,"data":"truncated \\ud83c"}
+                {"event":"property-change","id":1,"data":"bad \\uzz12 hex"}
+                {"event":"property-change","id":1,"data":"short \\u12"}
+                """);
+        assertEquals(List.of(
+                "property 1 = \"a\\b\"c/d\n\t\u00e9\u20ac\"",
+                "property 1 = \"\ud83c\udfb5 surrogate pair\"",
+                "property 1 = \"lone \ufffd high\"",
+                "property 1 = \"lone \ufffd low\"",
+                "property 1 = \"high \ufffdA then not low\"",
+                "property 1 = \"truncated \ufffd\"",
+                "property 1 = \"bad \ufffd hex\"",
+                "property 1 = \"short \ufffd\""), received);
+    }
+
+    @Test
+    void keepsIncompleteLinesForTheNextRead() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(utf8("{\"event\":\"idle\"}\n{\"event\":\"property-change\",\"id\":1,\"data\":12.3"));
+        buffer.flip();
+        decoder.decode(buffer);
+        assertEquals(List.of("event idle"), received);
+
+        // like the IPC client: keep the incomplete line, and append what is read next
+        buffer.compact();
+        buffer.put(utf8("45}\n{\"event\":\"file-lo"));
+        buffer.flip();
+        decoder.decode(buffer);
+        assertEquals(List.of("event idle", "property 1 = 12.345"), received);
+
+        buffer.compact();
+        buffer.put(utf8("aded\"}\n"));
+        buffer.flip();
+        decoder.decode(buffer);
+        assertEquals(List.of("event idle", "property 1 = 12.345", "event file-loaded"), received);
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void skipsMalformedLines() {
+        decode("""
+                not json
+                {"event":}
+                {"event":"property-change","id":1,"data":[1,2}
+                {"event":"property-change","id":1,"data":-}
+                {"event":"property-change","id":1,"data":1.5
+                {"event":"idle"}
+                """);
+        assertEquals(List.of("event idle"), received);
+    }
+
+    @Test
+    void distinguishesRepliesFromEvents() {
+        decode("""
+                {"data":"374.955828","request_id":12,"error":"success"}
+                {"request_id":0,"error":"invalid parameter"}
+                {"request_id":7,"error":"success","data":1.5}
+                {"request_id":8,"error":"success","data":{"a":[1,"]}"]}}
+                {"request_id":9,"data":null}
+                {"event":"property-change","id":1,"data":2,"request_id":10}
+                {"id":1,"data":3}
+                """);
+        assertEquals(List.of(
+                "reply 12 success 374.955828",
+                "reply 0 invalid parameter null",
+                "reply 7 success 1.5",
+                "reply 8 success {\"a\":[1,\"]}\"]}",
+                "reply 9 success null",
+                "property 1 = 2.0"), received);
+    }
+
+    private double property(String number) {
+        numbers.clear();
+        decode("{\"event\":\"property-change\",\"id\":1,\"data\":" + number + "}\n");
+        assertEquals(1, numbers.size(), () -> number + " was not decoded: " + received);
+        return numbers.get(0);
+    }
+
+    private void decode(String text) {
+        ByteBuffer buffer = ByteBuffer.wrap(utf8(text));
+        decoder.decode(buffer);
+        assertEquals(0, buffer.remaining(), "incomplete line left over");
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}